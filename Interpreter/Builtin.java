@@ -0,0 +1,150 @@
+package plc.interpreter;
+
+import java.util.List;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * A function from the standard library which evaluates all of its arguments
+ * before doing anything with them. Unlike special forms such as define, these
+ * can be called with the values of the arguments through {@link #invoke},
+ * which is what compiled code does.
+ *
+ * Each argument can be required to have a type, which is checked as soon as
+ * it is evaluated, and the number of arguments can be checked before any of
+ * them are evaluated. The type {@link Number} requires a number in one of the
+ * representations from {@link Numbers}.
+ *
+ * Besides the body taking an array of any number of arguments, a builtin can
+ * have implementations for zero to three arguments, which are called without
+ * allocating an array. Any which are missing fall back to the body.
+ */
+final class Builtin implements Function<List<Ast>, Object> {
+
+    private final Interpreter interpreter;
+    private final Class<?> type;
+    private final int arity;
+    private final String message;
+    private final Function<Object[], Object> body;
+    private Supplier<Object> nullary = null;
+    private UnaryOperator<Object> unary = null;
+    private BinaryOperator<Object> binary = null;
+    private Ternary ternary = null;
+
+    interface Ternary {
+
+        Object apply(Object x, Object y, Object z);
+
+    }
+
+    Builtin(Interpreter interpreter, Class<?> type, Function<Object[], Object> body) {
+        this(interpreter, type, -1, null, body);
+    }
+
+    /**
+     * Creates a builtin which requires exactly {@code arity} arguments,
+     * throwing an exception with the given message otherwise.
+     */
+    Builtin(Interpreter interpreter, int arity, String message, Function<Object[], Object> body) {
+        this(interpreter, null, arity, message, body);
+    }
+
+    private Builtin(Interpreter interpreter, Class<?> type, int arity, String message, Function<Object[], Object> body) {
+        this.interpreter = interpreter;
+        this.type = type;
+        this.arity = arity;
+        this.message = message;
+        this.body = body;
+    }
+
+    Builtin nullary(Supplier<Object> nullary) {
+        this.nullary = nullary;
+        return this;
+    }
+
+    Builtin unary(UnaryOperator<Object> unary) {
+        this.unary = unary;
+        return this;
+    }
+
+    Builtin binary(BinaryOperator<Object> binary) {
+        this.binary = binary;
+        return this;
+    }
+
+    Builtin ternary(Ternary ternary) {
+        this.ternary = ternary;
+        return this;
+    }
+
+    @Override
+    public Object apply(List<Ast> args) {
+        check(args.size());
+        switch (args.size()) {
+            case 0:
+                return invoke();
+            case 1:
+                return invoke(check(interpreter.eval(args.get(0))));
+            case 2: {
+                Object x = check(interpreter.eval(args.get(0)));
+                return invoke(x, check(interpreter.eval(args.get(1))));
+            }
+            case 3: {
+                Object x = check(interpreter.eval(args.get(0)));
+                Object y = check(interpreter.eval(args.get(1)));
+                return invoke(x, y, check(interpreter.eval(args.get(2))));
+            }
+            default:
+                Object[] values = new Object[args.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = check(interpreter.eval(args.get(i)));
+                }
+                return invoke(values);
+        }
+    }
+
+    /**
+     * Checks the number of arguments, before they are evaluated.
+     */
+    void check(int count) {
+        if (arity >= 0 && count != arity)
+            throw new EvalException(message);
+    }
+
+    /**
+     * Checks the type of an argument once it has been evaluated, returning it.
+     */
+    Object check(Object value) {
+        if (type == Number.class)
+            Numbers.require(value);
+        else if (type != null)
+            Interpreter.requireType(type, value);
+        return value;
+    }
+
+    /**
+     * Calls the function with arguments which have already been checked.
+     */
+    Object invoke(Object[] values) {
+        return body.apply(values);
+    }
+
+    Object invoke() {
+        return nullary != null ? nullary.get() : body.apply(new Object[0]);
+    }
+
+    Object invoke(Object x) {
+        return unary != null ? unary.apply(x) : body.apply(new Object[] {x});
+    }
+
+    Object invoke(Object x, Object y) {
+        return binary != null ? binary.apply(x, y) : body.apply(new Object[] {x, y});
+    }
+
+    Object invoke(Object x, Object y, Object z) {
+        return ternary != null ? ternary.apply(x, y, z) : body.apply(new Object[] {x, y, z});
+    }
+
+}
@@ -0,0 +1,526 @@
+package plc.interpreter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A compiled form or function for the {@link Vm}, which is a stack machine.
+ * The code is an array of instructions, each an opcode followed by its
+ * operands, which refer to the tables of constants, symbols, call sites, and
+ * nested functions by index. Jumps are to an absolute position in the code.
+ *
+ * Each instruction does a fixed amount of work apart from the lookups of names
+ * through scopes and calls to builtins, so the cost of running a program can
+ * be estimated from the instructions it executes.
+ *
+ * Bytecode is independent of the scope it runs in and can be stored with
+ * {@link #encode()} and loaded again with {@link #decode(byte[])}.
+ */
+public final class Bytecode {
+
+    static final byte[] MAGIC = {'W', 'B', 'Y', 'C'};
+    static final int VERSION = 1;
+
+    /** {@code CONST k}: pushes constant k. */
+    static final int CONST = 0;
+    /** {@code VOID}, {@code TRUE}, {@code FALSE}: pushes the value. */
+    static final int VOID = 1, TRUE = 2, FALSE = 3;
+    /** {@code LOAD depth slot}: pushes the parameter at the address. */
+    static final int LOAD = 4;
+    /**
+     * {@code LOOKUP k}: pushes the value of symbol k in the current scope,
+     * through the {@link InlineCache} for the symbol.
+     */
+    static final int LOOKUP = 5;
+    /** {@code STORE depth slot}: pops a value into the parameter at the address. */
+    static final int STORE = 6;
+    /** {@code SET k}, {@code DEFINE k}: pops a value and sets or defines symbol k. */
+    static final int SET = 7, DEFINE = 8;
+    /** {@code POP}: discards the top of the stack. */
+    static final int POP = 9;
+    /** {@code JUMP target}: continues at the target. */
+    static final int JUMP = 10;
+    /** {@code JUMP_IF_FALSE target}, {@code JUMP_IF_TRUE target}: pops a Boolean and jumps on it. */
+    static final int JUMP_IF_FALSE = 11, JUMP_IF_TRUE = 12;
+    /**
+     * {@code GUARD k target}: jumps to the target unless symbol k refers to
+     * the function from the standard library with that name.
+     */
+    static final int GUARD = 13;
+    /**
+     * {@code PREPARE count site target}: checks the function on the stack
+     * before its arguments are evaluated. A function which evaluates its own
+     * arguments is called with the asts of call site and the result replaces
+     * it, continuing at the target.
+     */
+    static final int PREPARE = 14;
+    /** {@code CHECK index}: checks the argument on the stack with the builtin being called. */
+    static final int CHECK = 15;
+    /** {@code CALL count}: pops the arguments and the function, and calls it. */
+    static final int CALL = 16;
+    /** {@code RETURN}: returns the top of the stack to the caller. */
+    static final int RETURN = 17;
+    /** {@code ENTER}, {@code LEAVE}: enters a new scope, or returns to the parent. */
+    static final int ENTER = 18, LEAVE = 19;
+    /** {@code CLOSURE f}: pushes function f, closed over the current scope. */
+    static final int CLOSURE = 20;
+    /**
+     * {@code ITERATE k target}: pops a sequence, and if it is empty pushes VOID
+     * and jumps to the target. Otherwise enters a new scope for symbol k and
+     * pushes an iterator for the sequence.
+     */
+    static final int ITERATE = 21;
+    /**
+     * {@code NEXT k target}: binds symbol k to the next element of the
+     * iterator on the stack (see {@link Scope#iterate(Symbol, Object)}), or if
+     * there isn't one pops it, leaves the scope, pushes VOID and jumps to the
+     * target.
+     */
+    static final int NEXT = 22;
+    /**
+     * {@code APPLY site}: pops a function and calls it with the asts of the
+     * call site, which is how a special form is called once its name has been
+     * bound to something else.
+     */
+    static final int APPLY = 23;
+    /**
+     * {@code TAILCALL count}: a CALL in tail position, which returns from the
+     * current function into the function being called if it is defined by
+     * bytecode, instead of waiting for it.
+     */
+    static final int TAILCALL = 24;
+
+    private static final String[] NAMES = {"CONST", "VOID", "TRUE", "FALSE", "LOAD", "LOOKUP", "STORE", "SET",
+            "DEFINE", "POP", "JUMP", "JUMP_IF_FALSE", "JUMP_IF_TRUE", "GUARD", "PREPARE", "CHECK", "CALL", "RETURN",
+            "ENTER", "LEAVE", "CLOSURE", "ITERATE", "NEXT", "APPLY", "TAILCALL"};
+    private static final int[] OPERANDS = {1, 0, 0, 0, 2, 1, 2, 1, 1, 0, 1, 1, 1, 2, 3, 1, 1, 0, 0, 0, 1, 2, 2, 1, 1};
+
+    private static final int NUMBER = 0, STRING = 1;
+
+    final Symbol name;
+    final List<Symbol> parameters;
+    final Resolver.Layout layout;
+    final int[] code;
+    final Object[] constants;
+    final Symbol[] symbols;
+    final List<Ast>[] sites;
+    final Bytecode[] functions;
+    final InlineCache[] caches;
+
+    Bytecode(Symbol name, List<Symbol> parameters, Resolver.Layout layout, int[] code, Object[] constants,
+             Symbol[] symbols, List<Ast>[] sites, Bytecode[] functions) {
+        this.name = name;
+        this.parameters = parameters;
+        this.layout = layout;
+        this.code = code;
+        this.constants = constants;
+        this.symbols = symbols;
+        this.sites = sites;
+        this.functions = functions;
+        this.caches = new InlineCache[symbols.length];
+        for (int i = 0; i < symbols.length; i++) {
+            caches[i] = new InlineCache(symbols[i]);
+        }
+    }
+
+    /**
+     * Compiles a form which will be run outside of any function.
+     */
+    public static Bytecode compile(Ast ast) {
+        return BytecodeCompiler.compile(ast);
+    }
+
+    /**
+     * Returns the number of instructions, including those of nested functions.
+     */
+    public int size() {
+        int size = 0;
+        for (int pc = 0; pc < code.length; pc += 1 + OPERANDS[code[pc]]) {
+            size++;
+        }
+        for (Bytecode function : functions) {
+            size += function.size();
+        }
+        return size;
+    }
+
+    public byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            encode(out);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void encode(DataOutputStream out) throws IOException {
+        out.writeBoolean(name != null);
+        if (name != null) {
+            write(out, name.getName());
+            out.writeInt(parameters.size());
+            for (Symbol parameter : parameters) {
+                write(out, parameter.getName());
+            }
+            out.writeInt(layout.getBound().size());
+            for (Symbol symbol : layout.getBound()) {
+                write(out, symbol.getName());
+            }
+        }
+        out.writeInt(code.length);
+        for (int instruction : code) {
+            out.writeInt(instruction);
+        }
+        out.writeInt(constants.length);
+        for (Object constant : constants) {
+            out.writeByte(constant instanceof String ? STRING : NUMBER);
+            write(out, constant.toString());
+        }
+        out.writeInt(symbols.length);
+        for (Symbol symbol : symbols) {
+            write(out, symbol.getName());
+        }
+        out.writeInt(sites.length);
+        for (List<Ast> site : sites) {
+            out.writeInt(site.size());
+            for (Ast ast : site) {
+                byte[] encoded = AstCodec.encode(ast);
+                out.writeInt(encoded.length);
+                out.write(encoded);
+            }
+        }
+        out.writeInt(functions.length);
+        for (Bytecode function : functions) {
+            function.encode(out);
+        }
+    }
+
+    /**
+     * Decodes bytecode created by {@link #encode()}, throwing an IOException
+     * if the bytes are not valid bytecode for this version.
+     */
+    public static Bytecode decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION)
+            throw new IOException("Not a bytecode file for version " + VERSION + ".");
+        try {
+            Bytecode bytecode = decode(in);
+            bytecode.verify(new ArrayList<>());
+            return bytecode;
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid bytecode.", e);
+        }
+    }
+
+    private static Bytecode decode(DataInputStream in) throws IOException {
+        Symbol name = null;
+        List<Symbol> parameters = null;
+        Resolver.Layout layout = null;
+        if (in.readBoolean()) {
+            name = Symbol.of(read(in));
+            parameters = new ArrayList<>();
+            for (int i = length(in, 4); i > 0; i--) {
+                parameters.add(Symbol.of(read(in)));
+            }
+            Set<Symbol> bound = new HashSet<>();
+            for (int i = length(in, 4); i > 0; i--) {
+                bound.add(Symbol.of(read(in)));
+            }
+            layout = Resolver.layout(parameters, bound);
+        }
+        int[] code = new int[length(in, 4)];
+        for (int i = 0; i < code.length; i++) {
+            code[i] = in.readInt();
+        }
+        Object[] constants = new Object[length(in, 5)];
+        for (int i = 0; i < constants.length; i++) {
+            int tag = in.readByte();
+            String value = read(in);
+            constants[i] = tag == NUMBER ? Numbers.valueOf(new BigDecimal(value)) : value;
+        }
+        Symbol[] symbols = new Symbol[length(in, 4)];
+        for (int i = 0; i < symbols.length; i++) {
+            symbols[i] = Symbol.of(read(in));
+        }
+        List<Ast>[] sites = sites(length(in, 4));
+        for (int i = 0; i < sites.length; i++) {
+            sites[i] = new ArrayList<>();
+            for (int j = length(in, 4); j > 0; j--) {
+                byte[] encoded = new byte[length(in, 1)];
+                in.readFully(encoded);
+                sites[i].add(AstCodec.decode(encoded));
+            }
+        }
+        Bytecode[] functions = new Bytecode[length(in, 1)];
+        for (int i = 0; i < functions.length; i++) {
+            functions[i] = decode(in);
+        }
+        return new Bytecode(name, parameters, layout, code, constants, symbols, sites, functions);
+    }
+
+    /**
+     * Checks that the bytecode can't index outside of its tables or the stack,
+     * where the layouts are of this function and then each function
+     * containing it. Each instruction must be complete with its operands in
+     * range, and LOAD and STORE must address a parameter of one of the
+     * layouts. Then every path through the code is followed from the start,
+     * checking that jumps land on an instruction, that each instruction has
+     * the values it pops and the same stack and number of scopes on every
+     * path reaching it, and that the code can't run off the end.
+     */
+    private void verify(List<Resolver.Layout> layouts) throws IOException {
+        boolean[] starts = new boolean[code.length];
+        int pc = 0;
+        while (pc < code.length) {
+            int opcode = code[pc];
+            if (opcode < 0 || opcode >= OPERANDS.length || pc + OPERANDS[opcode] >= code.length)
+                throw new IOException("Invalid instruction at " + pc + ".");
+            starts[pc] = true;
+            int[] limits;
+            switch (opcode) {
+                case CONST: limits = new int[] {constants.length}; break;
+                case LOAD: case STORE: limits = new int[] {layouts.size(), Integer.MAX_VALUE}; break;
+                case LOOKUP: case SET: case DEFINE: limits = new int[] {symbols.length}; break;
+                case JUMP: case JUMP_IF_FALSE: case JUMP_IF_TRUE: limits = new int[] {code.length}; break;
+                case GUARD: case ITERATE: case NEXT: limits = new int[] {symbols.length, code.length}; break;
+                case PREPARE: limits = new int[] {Integer.MAX_VALUE, sites.length, code.length}; break;
+                case CLOSURE: limits = new int[] {functions.length}; break;
+                case APPLY: limits = new int[] {sites.length}; break;
+                default: limits = new int[] {Integer.MAX_VALUE, Integer.MAX_VALUE}; break;
+            }
+            for (int i = 1; i <= OPERANDS[opcode]; i++) {
+                if (code[pc + i] < 0 || code[pc + i] >= limits[i - 1])
+                    throw new IOException("Invalid operand at " + (pc + i) + ".");
+            }
+            if ((opcode == LOAD || opcode == STORE) && code[pc + 2] >= layouts.get(code[pc + 1]).size())
+                throw new IOException("Invalid parameter address at " + pc + ".");
+            pc += 1 + OPERANDS[opcode];
+        }
+        if (code.length == 0)
+            throw new IOException("Invalid bytecode, which is empty.");
+        State[] states = new State[code.length];
+        Deque<Integer> pending = new ArrayDeque<>();
+        flow(states, starts, pending, 0, new State(new byte[0], 0));
+        while (!pending.isEmpty()) {
+            pc = pending.pop();
+            State state = states[pc];
+            int depth = state.stack.length;
+            int next = pc + 1 + OPERANDS[code[pc]];
+            switch (code[pc]) {
+                case CONST: case VOID: case TRUE: case FALSE: case LOAD: case LOOKUP: case CLOSURE:
+                    flow(states, starts, pending, next, state.push(VALUE));
+                    break;
+                case STORE: case SET: case DEFINE: case POP:
+                    state.require(1, pc);
+                    flow(states, starts, pending, next, state.pop(1));
+                    break;
+                case JUMP:
+                    flow(states, starts, pending, code[pc + 1], state);
+                    break;
+                case JUMP_IF_FALSE: case JUMP_IF_TRUE:
+                    state.require(1, pc);
+                    flow(states, starts, pending, next, state.pop(1));
+                    flow(states, starts, pending, code[pc + 1], state.pop(1));
+                    break;
+                case GUARD:
+                    flow(states, starts, pending, next, state);
+                    flow(states, starts, pending, code[pc + 2], state);
+                    break;
+                case PREPARE:
+                    state.require(1, pc);
+                    flow(states, starts, pending, next, state.pop(1).push(PREPARED));
+                    flow(states, starts, pending, code[pc + 3], state.pop(1).push(VALUE));
+                    break;
+                case CHECK:
+                    state.require(code[pc + 1] + 2, pc);
+                    flow(states, starts, pending, next, state);
+                    break;
+                case CALL: case TAILCALL: {
+                    int count = code[pc + 1];
+                    state.require(count + 1, pc);
+                    if (state.stack[depth - count - 1] != PREPARED)
+                        throw new IOException("Invalid call without PREPARE at " + pc + ".");
+                    if (code[pc] == TAILCALL && depth != count + 1)
+                        throw new IOException("Invalid stack for a tail call at " + pc + ".");
+                    flow(states, starts, pending, next, state.pop(count + 1).push(VALUE));
+                    break;
+                }
+                case RETURN:
+                    if (depth != 1)
+                        throw new IOException("Invalid stack for RETURN at " + pc + ".");
+                    break;
+                case ENTER:
+                    flow(states, starts, pending, next, state.enter(1));
+                    break;
+                case LEAVE:
+                    if (state.scopes == 0)
+                        throw new IOException("Invalid LEAVE without a scope at " + pc + ".");
+                    flow(states, starts, pending, next, state.enter(-1));
+                    break;
+                case ITERATE:
+                    state.require(1, pc);
+                    flow(states, starts, pending, next, state.pop(1).push(ITERATOR).enter(1));
+                    flow(states, starts, pending, code[pc + 2], state.pop(1).push(VALUE));
+                    break;
+                case NEXT:
+                    state.require(1, pc);
+                    if (state.stack[depth - 1] != ITERATOR || state.scopes == 0)
+                        throw new IOException("Invalid NEXT without an iterator at " + pc + ".");
+                    flow(states, starts, pending, next, state);
+                    flow(states, starts, pending, code[pc + 2], state.pop(1).push(VALUE).enter(-1));
+                    break;
+                case APPLY:
+                    state.require(1, pc);
+                    flow(states, starts, pending, next, state.pop(1).push(VALUE));
+                    break;
+                default:
+                    throw new AssertionError(code[pc]);
+            }
+        }
+        for (Bytecode function : functions) {
+            if (function.layout == null)
+                throw new IOException("Invalid function without parameters.");
+            List<Resolver.Layout> inner = new ArrayList<>();
+            inner.add(function.layout);
+            inner.addAll(layouts);
+            function.verify(inner);
+        }
+    }
+
+    /**
+     * Records the state before the instruction at the target, which must be
+     * the same as on any other path reaching it, and adds the instruction to
+     * those to check the first time it is reached.
+     */
+    private static void flow(State[] states, boolean[] starts, Deque<Integer> pending, int target, State state)
+            throws IOException {
+        if (target >= starts.length || !starts[target])
+            throw new IOException("Invalid jump or end of code at " + target + ".");
+        if (states[target] == null) {
+            states[target] = state;
+            pending.push(target);
+        } else if (!states[target].equals(state)) {
+            throw new IOException("Inconsistent stack at " + target + ".");
+        }
+    }
+
+    private static final byte VALUE = 0, ITERATOR = 1, PREPARED = 2;
+
+    /**
+     * What is on the operand stack before an instruction, each element being
+     * a value, an iterator pushed by ITERATE or a function checked by PREPARE,
+     * and the number of scopes entered since the start of the code.
+     */
+    private static final class State {
+
+        private final byte[] stack;
+        private final int scopes;
+
+        State(byte[] stack, int scopes) {
+            this.stack = stack;
+            this.scopes = scopes;
+        }
+
+        void require(int count, int pc) throws IOException {
+            if (stack.length < count)
+                throw new IOException("Invalid stack underflow at " + pc + ".");
+        }
+
+        State push(byte type) {
+            byte[] pushed = Arrays.copyOf(stack, stack.length + 1);
+            pushed[stack.length] = type;
+            return new State(pushed, scopes);
+        }
+
+        State pop(int count) {
+            return new State(Arrays.copyOf(stack, stack.length - count), scopes);
+        }
+
+        State enter(int count) {
+            return new State(stack, scopes + count);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof State && scopes == ((State) obj).scopes && Arrays.equals(stack, ((State) obj).stack);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * scopes + Arrays.hashCode(stack);
+        }
+
+    }
+
+    /**
+     * Reads the number of elements in a table, each of which takes at least
+     * the given number of bytes, so a length the remaining bytes can't hold is
+     * invalid.
+     */
+    private static int length(DataInputStream in, int bytes) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available() / bytes)
+            throw new IOException("Invalid length " + length + ".");
+        return length;
+    }
+
+    /**
+     * Creates the table of call sites, since an array of a generic type can
+     * only be created from a raw one.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static List<Ast>[] sites(int length) {
+        return new List[length];
+    }
+
+    private static void write(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String read(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[length(in, 1)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a listing of the instructions, followed by those of each nested
+     * function.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(name != null ? name + " " + parameters : "<form>").append('\n');
+        for (int pc = 0; pc < code.length; pc += 1 + OPERANDS[code[pc]]) {
+            builder.append(pc).append(": ").append(NAMES[code[pc]]);
+            for (int i = 1; i <= OPERANDS[code[pc]]; i++) {
+                builder.append(' ').append(code[pc + i]);
+            }
+            builder.append('\n');
+        }
+        for (Bytecode function : functions) {
+            builder.append(function);
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,265 @@
+package plc.interpreter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiles an ast into {@link Bytecode}. Functions defined in the ast are
+ * compiled along with it, so parameters are resolved to their address from
+ * the functions containing them at compile time instead of when the function
+ * is defined. Like the {@link Resolver}, a name bound by define or for in a
+ * function is never resolved to that function or any outside of it.
+ *
+ * The special forms of the standard library are compiled into instructions,
+ * guarded by a {@link Bytecode#GUARD} which falls back to applying whatever
+ * the name refers to when the bytecode runs to the asts, so the arguments
+ * aren't compiled twice. Every other term is a call.
+ */
+final class BytecodeCompiler {
+
+    private static final Symbol DEFINE = Symbol.of("define");
+    private static final Symbol SET = Symbol.of("set!");
+    private static final Symbol DO = Symbol.of("do");
+    private static final Symbol WHILE = Symbol.of("while");
+    private static final Symbol FOR = Symbol.of("for");
+    private static final Symbol AND = Symbol.of("and");
+    private static final Symbol OR = Symbol.of("or");
+
+    private final List<Resolver.Layout> layouts;
+    private int[] code = new int[64];
+    private int length = 0;
+    private final List<Object> constants = new ArrayList<>();
+    private final List<Symbol> symbols = new ArrayList<>();
+    private final List<List<Ast>> sites = new ArrayList<>();
+    private final List<Bytecode> functions = new ArrayList<>();
+
+    /**
+     * Creates a compiler for the body of a function, where the layouts are of
+     * that function and then each function containing it.
+     */
+    private BytecodeCompiler(List<Resolver.Layout> layouts) {
+        this.layouts = layouts;
+    }
+
+    static Bytecode compile(Ast ast) {
+        BytecodeCompiler compiler = new BytecodeCompiler(new ArrayList<>());
+        compiler.expression(ast, true);
+        compiler.emit(Bytecode.RETURN);
+        return compiler.toBytecode(null, null, null);
+    }
+
+    private Bytecode function(Symbol name, List<Symbol> parameters, Ast body) {
+        Resolver.Layout layout = Resolver.layout(parameters, body);
+        List<Resolver.Layout> layouts = new ArrayList<>();
+        layouts.add(layout);
+        layouts.addAll(this.layouts);
+        BytecodeCompiler compiler = new BytecodeCompiler(layouts);
+        compiler.expression(body, true);
+        compiler.emit(Bytecode.RETURN);
+        return compiler.toBytecode(name, parameters, layout);
+    }
+
+    private Bytecode toBytecode(Symbol name, List<Symbol> parameters, Resolver.Layout layout) {
+        return new Bytecode(name, parameters, layout, Arrays.copyOf(code, length), constants.toArray(),
+                symbols.toArray(new Symbol[0]), sites.toArray(Bytecode.sites(0)), functions.toArray(new Bytecode[0]));
+    }
+
+    /**
+     * Emits the code for an ast, where a call in tail position is a
+     * {@link Bytecode#TAILCALL}.
+     */
+    private void expression(Ast ast, boolean tail) {
+        if (ast instanceof Ast.Term) {
+            term((Ast.Term) ast, tail);
+        } else if (ast instanceof Ast.Identifier) {
+            variable(((Ast.Identifier) ast).getSymbol());
+        } else if (ast instanceof Ast.NumberLiteral) {
+            emit(Bytecode.CONST, index(constants, Numbers.valueOf(((Ast.NumberLiteral) ast).getValue())));
+        } else if (ast instanceof Ast.StringLiteral) {
+            emit(Bytecode.CONST, index(constants, ((Ast.StringLiteral) ast).getValue()));
+        } else {
+            throw new AssertionError(ast.getClass());
+        }
+    }
+
+    private void variable(Symbol name) {
+        long address = address(name);
+        if (address >= 0)
+            emit(Bytecode.LOAD, (int) (address >>> 32), (int) address);
+        else
+            emit(Bytecode.LOOKUP, index(symbols, name));
+    }
+
+    private void term(Ast.Term ast, boolean tail) {
+        Symbol name = ast.getSymbol();
+        List<Ast> args = ast.getArgs();
+        if (address(name) < 0 && form(name, args)) {
+            int guard = emit(Bytecode.GUARD, index(symbols, name), 0);
+            compile(name, args, tail);
+            int end = emit(Bytecode.JUMP, 0);
+            patch(guard + 2);
+            variable(name);
+            sites.add(args);
+            emit(Bytecode.APPLY, sites.size() - 1);
+            patch(end + 1);
+        } else {
+            call(ast, tail);
+        }
+    }
+
+    /**
+     * Returns true if the term is a valid use of a special form.
+     */
+    private static boolean form(Symbol name, List<Ast> args) {
+        if (name == DEFINE && args.size() == 2) {
+            if (args.get(0) instanceof Ast.Identifier)
+                return true;
+            if (!(args.get(0) instanceof Ast.Term))
+                return false;
+            for (Ast parameter : ((Ast.Term) args.get(0)).getArgs()) {
+                if (!(parameter instanceof Ast.Identifier))
+                    return false;
+            }
+            return true;
+        }
+        return name == SET && args.size() == 2 && args.get(0) instanceof Ast.Identifier
+                || name == DO || name == WHILE && args.size() == 2 || name == AND || name == OR
+                || name == FOR && args.size() == 2 && args.get(0) instanceof Ast.Term
+                && ((Ast.Term) args.get(0)).getArgs().size() == 1;
+    }
+
+    private void compile(Symbol name, List<Ast> args, boolean tail) {
+        if (name == DEFINE && args.get(0) instanceof Ast.Identifier) {
+            expression(args.get(1), false);
+            emit(Bytecode.DEFINE, index(symbols, ((Ast.Identifier) args.get(0)).getSymbol()));
+            emit(Bytecode.VOID);
+        } else if (name == DEFINE) {
+            Ast.Term term = (Ast.Term) args.get(0);
+            List<Symbol> parameters = new ArrayList<>();
+            for (Ast parameter : term.getArgs()) {
+                parameters.add(((Ast.Identifier) parameter).getSymbol());
+            }
+            functions.add(function(term.getSymbol(), parameters, args.get(1)));
+            emit(Bytecode.CLOSURE, functions.size() - 1);
+            emit(Bytecode.DEFINE, index(symbols, term.getSymbol()));
+            emit(Bytecode.VOID);
+        } else if (name == SET) {
+            Symbol variable = ((Ast.Identifier) args.get(0)).getSymbol();
+            long address = address(variable);
+            expression(args.get(1), false);
+            if (address >= 0)
+                emit(Bytecode.STORE, (int) (address >>> 32), (int) address);
+            else
+                emit(Bytecode.SET, index(symbols, variable));
+            emit(Bytecode.VOID);
+        } else if (name == DO) {
+            emit(Bytecode.ENTER);
+            if (args.isEmpty())
+                emit(Bytecode.VOID);
+            for (int i = 0; i < args.size(); i++) {
+                if (i > 0)
+                    emit(Bytecode.POP);
+                expression(args.get(i), tail && i == args.size() - 1);
+            }
+            emit(Bytecode.LEAVE);
+        } else if (name == WHILE) {
+            int loop = length;
+            expression(args.get(0), false);
+            int exit = emit(Bytecode.JUMP_IF_FALSE, 0);
+            expression(args.get(1), false);
+            emit(Bytecode.POP);
+            emit(Bytecode.JUMP, loop);
+            patch(exit + 1);
+            emit(Bytecode.VOID);
+        } else if (name == FOR) {
+            Ast.Term term = (Ast.Term) args.get(0);
+            int variable = index(symbols, term.getSymbol());
+            expression(term.getArgs().get(0), false);
+            int empty = emit(Bytecode.ITERATE, variable, 0);
+            int loop = emit(Bytecode.NEXT, variable, 0);
+            expression(args.get(1), false);
+            emit(Bytecode.POP);
+            emit(Bytecode.JUMP, loop);
+            patch(empty + 2);
+            patch(loop + 2);
+        } else {
+            boolean and = name == AND;
+            List<Integer> exits = new ArrayList<>();
+            for (Ast arg : args) {
+                expression(arg, false);
+                exits.add(emit(and ? Bytecode.JUMP_IF_FALSE : Bytecode.JUMP_IF_TRUE, 0));
+            }
+            emit(and ? Bytecode.TRUE : Bytecode.FALSE);
+            int end = emit(Bytecode.JUMP, 0);
+            for (int exit : exits) {
+                patch(exit + 1);
+            }
+            emit(and ? Bytecode.FALSE : Bytecode.TRUE);
+            patch(end + 1);
+        }
+    }
+
+    /**
+     * Emits a call to the function named by the term, with the arguments
+     * checked as they are evaluated.
+     */
+    private void call(Ast.Term ast, boolean tail) {
+        List<Ast> args = ast.getArgs();
+        variable(ast.getSymbol());
+        sites.add(args);
+        int prepare = emit(Bytecode.PREPARE, args.size(), sites.size() - 1, 0);
+        for (int i = 0; i < args.size(); i++) {
+            expression(args.get(i), false);
+            emit(Bytecode.CHECK, i);
+        }
+        emit(tail ? Bytecode.TAILCALL : Bytecode.CALL, args.size());
+        patch(prepare + 3);
+    }
+
+    /**
+     * Returns the address of the name as {@code depth << 32 | slot}, or -1 if
+     * it can't be resolved.
+     */
+    private long address(Symbol name) {
+        for (int depth = 0; depth < layouts.size(); depth++) {
+            Resolver.Layout layout = layouts.get(depth);
+            if (layout.binds(name))
+                return -1;
+            if (layout.indexOf(name) >= 0)
+                return (long) depth << 32 | layout.indexOf(name);
+        }
+        return -1;
+    }
+
+    private static <T> int index(List<T> table, T value) {
+        int index = table.indexOf(value);
+        if (index < 0) {
+            table.add(value);
+            index = table.size() - 1;
+        }
+        return index;
+    }
+
+    /**
+     * Emits an instruction, returning its position.
+     */
+    private int emit(int opcode, int... operands) {
+        if (length + operands.length + 1 > code.length)
+            code = Arrays.copyOf(code, Math.max(code.length * 2, length + operands.length + 1));
+        int position = length;
+        code[length++] = opcode;
+        for (int operand : operands) {
+            code[length++] = operand;
+        }
+        return position;
+    }
+
+    /**
+     * Sets the operand at the position to jump to the current position.
+     */
+    private void patch(int position) {
+        code[position] = length;
+    }
+
+}
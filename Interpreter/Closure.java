@@ -0,0 +1,68 @@
+package plc.interpreter;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A user-defined function created by compiled code. When called, the values
+ * of the arguments become the slots of a new frame, which is created in the
+ * scope the function was defined in. How the body is run in that frame is up
+ * to the subclass, which is either a tree of {@link Compiler.Node}s or a class
+ * generated by the {@link JvmCompiler}.
+ *
+ * These can be called by the interpreter like any other function, but
+ * compiled code calls {@link #invoke(Object[])} with the values directly. A
+ * call in tail position of the body is returned as a {@link TailCall} by
+ * {@link #call(Object[])}, which invoke then makes.
+ */
+abstract class Closure implements Function<List<Ast>, Object> {
+
+    private final Interpreter interpreter;
+    final Resolver.Layout layout;
+    final Scope parent;
+
+    Closure(Interpreter interpreter, Resolver.Layout layout, Scope parent) {
+        this.interpreter = interpreter;
+        this.layout = layout;
+        this.parent = parent;
+    }
+
+    @Override
+    public Object apply(List<Ast> args) {
+        return invoke(evaluate(args));
+    }
+
+    /**
+     * Evaluates the arguments with the interpreter, in its current scope.
+     */
+    Object[] evaluate(List<Ast> args) {
+        Object[] values = new Object[args.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = interpreter.eval(args.get(i));
+        }
+        return values;
+    }
+
+    Object invoke(Object[] values) {
+        return TailCall.run(call(values));
+    }
+
+    /**
+     * Calls the function, returning a {@link TailCall} if the body ends with
+     * one instead of making it.
+     */
+    Object call(Object[] values) {
+        if (layout.size() != values.length)
+            throw new EvalException("Invalid number of arguments");
+        if (layout.getDuplicate() != null)
+            throw new EvalException("The identifier " + layout.getDuplicate() + " is already defined in this scope.");
+        return run(new Scope(parent, layout, values), values);
+    }
+
+    /**
+     * Runs the body in the frame, where slots are the slots of the frame. This
+     * may return a {@link TailCall}.
+     */
+    abstract Object run(Scope frame, Object[] slots);
+
+}
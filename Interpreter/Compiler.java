@@ -0,0 +1,551 @@
+package plc.interpreter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Compiles an ast into a tree of nodes which are executed in a scope, instead
+ * of evaluating the ast directly. The work of working out what each ast does
+ * is done once when it is compiled: literals become constants, identifiers
+ * resolved by the {@link Resolver} are read from their frame, and calls to
+ * {@link Builtin}s and functions defined by compiled code are made with the
+ * values of the arguments rather than the asts.
+ *
+ * The special forms of the standard library (define, set!, do, while, for,
+ * and, or) are compiled into their own nodes when the name refers to them at
+ * compile time. Since they can be redefined, each of these checks the
+ * version of its name (see {@link Scope#getVersion(Symbol)}) before it runs, and
+ * calls whatever the name refers to instead if it has changed. Any other
+ * function is called with the asts of its arguments like the interpreter.
+ */
+final class Compiler {
+
+    private static final Symbol DEFINE = Symbol.of("define");
+    private static final Symbol SET = Symbol.of("set!");
+    private static final Symbol DO = Symbol.of("do");
+    private static final Symbol WHILE = Symbol.of("while");
+    private static final Symbol FOR = Symbol.of("for");
+    private static final Symbol AND = Symbol.of("and");
+    private static final Symbol OR = Symbol.of("or");
+
+    private final Interpreter interpreter;
+
+    Compiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    /**
+     * A compiled ast, which is executed in the scope it was compiled for or a
+     * scope nested inside of it.
+     */
+    abstract static class Node {
+
+        abstract Object execute(Scope scope);
+
+    }
+
+    /**
+     * Compiles an ast which will be executed in the given scope.
+     */
+    Node compile(Ast ast, Scope scope) {
+        return compile(ast, null, scope, false);
+    }
+
+    /**
+     * Compiles an ast inside the body of the function, or outside of any
+     * function if it is null. Loops inside the function count towards it
+     * being compiled to bytecode. If the ast is in tail position, the node
+     * returns a {@link TailCall} instead of calling a closure.
+     */
+    Node compile(Ast ast, Tiered owner, Scope scope, boolean tail) {
+        if (ast instanceof Ast.Term) {
+            return compile((Ast.Term) ast, owner, scope, tail);
+        } else if (ast instanceof Ast.Identifier) {
+            Ast.Identifier identifier = (Ast.Identifier) ast;
+            if (identifier.getDepth() >= 0)
+                return new Local(identifier.getDepth(), identifier.getSlot());
+            return new Global(identifier.getSymbol());
+        } else if (ast instanceof Ast.NumberLiteral) {
+            return new Constant(Numbers.valueOf(((Ast.NumberLiteral) ast).getValue()));
+        } else if (ast instanceof Ast.StringLiteral) {
+            return new Constant(((Ast.StringLiteral) ast).getValue());
+        } else {
+            throw new AssertionError(ast.getClass());
+        }
+    }
+
+    private Node compile(Ast.Term ast, Tiered owner, Scope scope, boolean tail) {
+        Node function;
+        if (ast.getDepth() >= 0) {
+            function = new Local(ast.getDepth(), ast.getSlot());
+        } else {
+            function = new Cached(ast.getSymbol());
+            Node form = form(ast, function, owner, scope, tail);
+            if (form != null)
+                return form;
+        }
+        return new Call(function, compile(ast.getArgs(), owner, scope, false), ast.getArgs(), tail);
+    }
+
+    /**
+     * Compiles the asts, where only the last may be in tail position.
+     */
+    private Node[] compile(List<Ast> asts, Tiered owner, Scope scope, boolean tail) {
+        Node[] nodes = new Node[asts.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = compile(asts.get(i), owner, scope, tail && i == nodes.length - 1);
+        }
+        return nodes;
+    }
+
+    /**
+     * Returns the node for a special form if the term is a valid use of one,
+     * else null.
+     */
+    private Node form(Ast.Term ast, Node function, Tiered owner, Scope scope, boolean tail) {
+        Symbol name = ast.getSymbol();
+        if (shadowed(name, owner != null ? owner.layout : null, scope) || scope.isIterated(name))
+            return null;
+        int version = scope.getVersion(name);
+        Object value;
+        try {
+            value = scope.lookup(name);
+        } catch (EvalException e) {
+            return null;
+        }
+        if (value == null || value != interpreter.getLibrary(name))
+            return null;
+        List<Ast> args = ast.getArgs();
+        Node fallback = new Call(function, null, args, false);
+        if (name == DEFINE && args.size() == 2) {
+            if (args.get(0) instanceof Ast.Identifier) {
+                Symbol variable = ((Ast.Identifier) args.get(0)).getSymbol();
+                return new DefineVariable(name, version, fallback, variable, compile(args.get(1), owner, scope, false));
+            } else if (args.get(0) instanceof Ast.Term) {
+                Ast.Term term = (Ast.Term) args.get(0);
+                List<Symbol> parameters = new ArrayList<>(term.getArgs().size());
+                for (Ast parameter : term.getArgs()) {
+                    if (!(parameter instanceof Ast.Identifier))
+                        return null;
+                    parameters.add(((Ast.Identifier) parameter).getSymbol());
+                }
+                return new DefineFunction(name, version, fallback, term.getSymbol(), parameters, args.get(1));
+            }
+        } else if (name == SET && args.size() == 2 && args.get(0) instanceof Ast.Identifier) {
+            return new Set(name, version, fallback, (Ast.Identifier) args.get(0), compile(args.get(1), owner, scope, false));
+        } else if (name == DO) {
+            return new Do(name, version, fallback, compile(args, owner, scope, tail));
+        } else if (name == WHILE && args.size() == 2) {
+            return new While(name, version, fallback, owner, compile(args.get(0), owner, scope, false), compile(args.get(1), owner, scope, false));
+        } else if (name == FOR && args.size() == 2 && args.get(0) instanceof Ast.Term
+                && ((Ast.Term) args.get(0)).getArgs().size() == 1) {
+            Ast.Term term = (Ast.Term) args.get(0);
+            return new For(name, version, fallback, owner, term.getSymbol(),
+                    compile(term.getArgs().get(0), owner, scope, false), compile(args.get(1), owner, scope, false));
+        } else if (name == AND || name == OR) {
+            return new Logical(name, version, fallback, name == AND, compile(args, owner, scope, tail));
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the name is a parameter of the function being compiled
+     * or a function containing it, since parameters are bound when the
+     * function is called and so may not be what the name refers to now.
+     */
+    static boolean shadowed(Symbol name, Resolver.Layout layout, Scope scope) {
+        if (layout != null && layout.indexOf(name) >= 0)
+            return true;
+        for (Scope frame = scope.getFrame(); frame != null; frame = frame.getOuter()) {
+            if (frame.getLayout().indexOf(name) >= 0)
+                return true;
+        }
+        return false;
+    }
+
+    private static final class Constant extends Node {
+
+        private final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Scope scope) {
+            return value;
+        }
+
+    }
+
+    private static final class Local extends Node {
+
+        private final int depth;
+        private final int slot;
+
+        Local(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Scope scope) {
+            return scope.load(depth, slot);
+        }
+
+    }
+
+    private static final class Global extends Node {
+
+        private final Symbol name;
+
+        Global(Symbol name) {
+            this.name = name;
+        }
+
+        @Override
+        Object execute(Scope scope) {
+            return scope.lookup(name);
+        }
+
+    }
+
+    /**
+     * Looks up the function of a call through an {@link InlineCache}.
+     */
+    private static final class Cached extends Node {
+
+        private final InlineCache cache;
+
+        Cached(Symbol name) {
+            this.cache = new InlineCache(name);
+        }
+
+        @Override
+        Object execute(Scope scope) {
+            return cache.lookup(scope);
+        }
+
+    }
+
+    /**
+     * Calls a function. If the arguments haven't been compiled, the function
+     * is always called with the asts of the arguments. In tail position, a
+     * call to a closure is returned as a {@link TailCall}.
+     */
+    private final class Call extends Node {
+
+        private final Node function;
+        private final Node[] args;
+        private final List<Ast> asts;
+        private final boolean tail;
+
+        Call(Node function, Node[] args, List<Ast> asts, boolean tail) {
+            this.function = function;
+            this.args = args;
+            this.asts = asts;
+            this.tail = tail;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        Object execute(Scope scope) {
+            Object value = function.execute(scope);
+            if (args != null && value instanceof Closure) {
+                Object[] values = new Object[args.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = args[i].execute(scope);
+                }
+                return tail ? new TailCall((Closure) value, values) : ((Closure) value).invoke(values);
+            } else if (args != null && value instanceof Builtin) {
+                Builtin builtin = (Builtin) value;
+                builtin.check(args.length);
+                switch (args.length) {
+                    case 0:
+                        return builtin.invoke();
+                    case 1:
+                        return builtin.invoke(builtin.check(args[0].execute(scope)));
+                    case 2: {
+                        Object x = builtin.check(args[0].execute(scope));
+                        return builtin.invoke(x, builtin.check(args[1].execute(scope)));
+                    }
+                    case 3: {
+                        Object x = builtin.check(args[0].execute(scope));
+                        Object y = builtin.check(args[1].execute(scope));
+                        return builtin.invoke(x, y, builtin.check(args[2].execute(scope)));
+                    }
+                }
+                Object[] values = new Object[args.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = builtin.check(args[i].execute(scope));
+                }
+                return builtin.invoke(values);
+            }
+            Function<List<Ast>, Object> fun = Interpreter.requireType(Function.class, value);
+            return interpreter.apply(fun, asts, scope);
+        }
+
+    }
+
+    /**
+     * A function defined by compiled code, which runs the body as a tree of
+     * nodes until the calls to it and the iterations of loops in it reach the
+     * {@link Interpreter#threshold}, at which point it is compiled to bytecode
+     * by the {@link JvmCompiler}. If an assumption made by the bytecode stops
+     * holding, the function is deoptimized back to nodes and counts again.
+     */
+    final class Tiered extends Closure {
+
+        private final Symbol name;
+        private final Ast body;
+        private final Node node;
+        private JvmCompiler.Compiled compiled = null;
+        private boolean failed = false;
+        private int count = 0;
+
+        Tiered(Symbol name, Resolver.Layout layout, Scope parent, Ast body) {
+            super(interpreter, layout, parent);
+            this.name = name;
+            this.body = body;
+            this.node = compile(body, this, parent, true);
+        }
+
+        @Override
+        Object run(Scope frame, Object[] slots) {
+            JvmCompiler.Compiled compiled = this.compiled;
+            if (compiled != null)
+                return compiled.run(frame, slots);
+            count();
+            return node.execute(frame);
+        }
+
+        /**
+         * Counts a call or an iteration of a loop, compiling the function if
+         * it has reached the threshold.
+         */
+        void count() {
+            if (++count > interpreter.threshold && interpreter.threshold >= 0 && compiled == null && !failed) {
+                compiled = JvmCompiler.compile(interpreter, Compiler.this, this, body);
+                failed = compiled == null;
+                if (compiled != null)
+                    interpreter.promoted(name, count);
+            }
+        }
+
+        /**
+         * Returns the function to the node tier because a guard in the
+         * compiled code failed.
+         */
+        void deoptimize(JvmCompiler.Compiled compiled, Symbol guard) {
+            if (this.compiled == compiled) {
+                this.compiled = null;
+                count = 0;
+                interpreter.deoptimized(name, guard);
+            }
+        }
+
+    }
+
+    /**
+     * A special form, which is only run if its name still refers to the same
+     * function as when it was compiled.
+     */
+    private abstract static class Form extends Node {
+
+        private final Symbol name;
+        private final int version;
+        private final Node fallback;
+
+        Form(Symbol name, int version, Node fallback) {
+            this.name = name;
+            this.version = version;
+            this.fallback = fallback;
+        }
+
+        @Override
+        final Object execute(Scope scope) {
+            if (scope.getVersion(name) != version)
+                return fallback.execute(scope);
+            return run(scope);
+        }
+
+        abstract Object run(Scope scope);
+
+    }
+
+    private static final class DefineVariable extends Form {
+
+        private final Symbol variable;
+        private final Node value;
+
+        DefineVariable(Symbol name, int version, Node fallback, Symbol variable, Node value) {
+            super(name, version, fallback);
+            this.variable = variable;
+            this.value = value;
+        }
+
+        @Override
+        Object run(Scope scope) {
+            scope.define(variable, value.execute(scope));
+            return Interpreter.VOID;
+        }
+
+    }
+
+    /**
+     * Defines a function, compiling the body when it is defined since that is
+     * when the parameters of the enclosing functions can be resolved.
+     */
+    private final class DefineFunction extends Form {
+
+        private final Symbol function;
+        private final List<Symbol> parameters;
+        private final Ast body;
+
+        DefineFunction(Symbol name, int version, Node fallback, Symbol function, List<Symbol> parameters, Ast body) {
+            super(name, version, fallback);
+            this.function = function;
+            this.parameters = parameters;
+            this.body = body;
+        }
+
+        @Override
+        Object run(Scope scope) {
+            Resolver.Layout layout = Resolver.layout(parameters, body);
+            scope.invalidate(layout);
+            scope.define(function, new Tiered(function, layout, scope, Resolver.resolve(body, layout, scope)));
+            return Interpreter.VOID;
+        }
+
+    }
+
+    private static final class Set extends Form {
+
+        private final Ast.Identifier variable;
+        private final Node value;
+
+        Set(Symbol name, int version, Node fallback, Ast.Identifier variable, Node value) {
+            super(name, version, fallback);
+            this.variable = variable;
+            this.value = value;
+        }
+
+        @Override
+        Object run(Scope scope) {
+            if (variable.getDepth() >= 0)
+                scope.store(variable.getDepth(), variable.getSlot(), value.execute(scope));
+            else
+                scope.set(variable.getSymbol(), value.execute(scope));
+            return Interpreter.VOID;
+        }
+
+    }
+
+    private static final class Do extends Form {
+
+        private final Node[] body;
+
+        Do(Symbol name, int version, Node fallback, Node[] body) {
+            super(name, version, fallback);
+            this.body = body;
+        }
+
+        @Override
+        Object run(Scope scope) {
+            Object x = Interpreter.VOID;
+            Scope child = new Scope(scope);
+            for (Node node : body) {
+                x = node.execute(child);
+            }
+            return x;
+        }
+
+    }
+
+    private static final class While extends Form {
+
+        private final Tiered owner;
+        private final Node condition;
+        private final Node body;
+
+        While(Symbol name, int version, Node fallback, Tiered owner, Node condition, Node body) {
+            super(name, version, fallback);
+            this.owner = owner;
+            this.condition = condition;
+            this.body = body;
+        }
+
+        @Override
+        Object run(Scope scope) {
+            while (Interpreter.requireType(Boolean.class, condition.execute(scope))) {
+                body.execute(scope);
+                if (owner != null)
+                    owner.count();
+            }
+            return Interpreter.VOID;
+        }
+
+    }
+
+    private static final class For extends Form {
+
+        private final Tiered owner;
+        private final Symbol variable;
+        private final Node list;
+        private final Node body;
+
+        For(Symbol name, int version, Node fallback, Tiered owner, Symbol variable, Node list, Node body) {
+            super(name, version, fallback);
+            this.owner = owner;
+            this.variable = variable;
+            this.list = list;
+            this.body = body;
+        }
+
+        @Override
+        Object run(Scope scope) {
+            Iterator<Object> iterator = Sequence.require(this.list.execute(scope)).traverse();
+            if (!iterator.hasNext())
+                return Interpreter.VOID;
+            Scope child = new Scope(scope);
+            while (iterator.hasNext()) {
+                child.iterate(variable, iterator.next());
+                body.execute(child);
+                if (owner != null)
+                    owner.count();
+            }
+            return Interpreter.VOID;
+        }
+
+    }
+
+    /**
+     * The and and or forms, which stop at the first argument which is false
+     * or true respectively.
+     */
+    private static final class Logical extends Form {
+
+        private final boolean and;
+        private final Node[] args;
+
+        Logical(Symbol name, int version, Node fallback, boolean and, Node[] args) {
+            super(name, version, fallback);
+            this.and = and;
+            this.args = args;
+        }
+
+        @Override
+        Object run(Scope scope) {
+            for (int i = 0; i < args.length - 1; i++) {
+                if (Objects.deepEquals(Interpreter.requireType(Boolean.class, args[i].execute(scope)), !and))
+                    return !and;
+            }
+            return args.length == 0 ? and : TailCall.requireBoolean(args[args.length - 1].execute(scope));
+        }
+
+    }
+
+}
@@ -0,0 +1,85 @@
+package plc.interpreter;
+
+/**
+ * Remembers what a name looked up by a call site referred to, so that calling
+ * the same function again costs a few comparisons instead of a lookup through
+ * each scope.
+ *
+ * Inside a function, the scopes from the current one out to the frame of the
+ * call are new each time, but can only bind the parameters and the names the
+ * {@link Resolver} found to be bound in the body. For any other name, the
+ * lookup gives the same result as a lookup in the scope the function was
+ * defined in, so a result is cached for the layout of the frame and the
+ * scope outside of it. Outside of any function the current scope is used.
+ *
+ * Since the value of a name can only change when it is bound or assigned,
+ * which changes its version in the scope (see {@link Scope#getVersion(Symbol)}),
+ * the cache is emptied when the version is different. The variable of a for
+ * loop changes on each iteration without changing its version, so it is never
+ * cached. A call site which has seen more than
+ * {@link #LIMIT} different scopes is megamorphic, and is always looked up.
+ */
+final class InlineCache {
+
+    private static final int LIMIT = 4;
+
+    private final Symbol name;
+    private int version = -1;
+    private Entry entries = null;
+    private int size = 0;
+    private boolean megamorphic = false;
+
+    private static final class Entry {
+
+        private final Resolver.Layout layout;
+        private final Scope scope;
+        private final Object value;
+        private final Entry next;
+
+        Entry(Resolver.Layout layout, Scope scope, Object value, Entry next) {
+            this.layout = layout;
+            this.scope = scope;
+            this.value = value;
+            this.next = next;
+        }
+
+    }
+
+    InlineCache(Symbol name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the value of the name in the scope, which is the same as
+     * {@link Scope#lookup(Symbol)}.
+     */
+    Object lookup(Scope scope) {
+        if (megamorphic)
+            return scope.lookup(name);
+        if (version != scope.getVersion(name)) {
+            version = scope.getVersion(name);
+            entries = null;
+            size = 0;
+        }
+        Scope frame = scope.getFrame();
+        Resolver.Layout layout = frame != null ? frame.getLayout() : null;
+        Scope key = frame != null ? frame.getParent() : scope;
+        for (Entry entry = entries; entry != null; entry = entry.next) {
+            if (entry.scope == key && entry.layout == layout)
+                return entry.value;
+        }
+        Object value = scope.lookup(name);
+        if (key != null && (layout == null || layout.indexOf(name) < 0 && !layout.binds(name))
+                && !scope.isIterated(name)) {
+            if (size == LIMIT) {
+                megamorphic = true;
+                entries = null;
+            } else {
+                entries = new Entry(layout, key, value, entries);
+                size++;
+            }
+        }
+        return value;
+    }
+
+}
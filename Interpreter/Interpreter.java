@@ -1,11 +1,11 @@
 package plc.interpreter;
 
 import java.io.PrintWriter;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -30,12 +30,137 @@ public final class Interpreter {
     public final PrintWriter out;
     public Scope scope;
 
+    /**
+     * The number of calls and loop iterations after which a function defined
+     * by compiled code is compiled to bytecode, or -1 to never do so.
+     */
+    public int threshold = 1000;
+
+    /**
+     * If not null, a line is printed here each time a function is promoted
+     * to bytecode or deoptimized, for tuning the threshold.
+     */
+    public PrintWriter trace = null;
+
+    private int promotions = 0;
+    private int deoptimizations = 0;
+    private final Map<Symbol, Function<List<Ast>, Object>> library = new HashMap<>();
+
+    /**
+     * The {@link InlineCache} of each unresolved term evaluated by this
+     * interpreter, keyed by identity since the asts may be shared. The caches
+     * are only an optimization, so they are all dropped once there are
+     * {@link #CACHES} of them rather than keeping every ast ever evaluated.
+     */
+    private final Map<Ast.Term, InlineCache> caches = new IdentityHashMap<>();
+    private static final int CACHES = 1 << 16;
+    private final Compiler compiler = new Compiler(this);
+
     public Interpreter(PrintWriter out, Scope scope) {
         this.out = out;
         this.scope = scope;
         init();
     }
 
+    /**
+     * Compiles the ast with the {@link Compiler} and executes it in the current
+     * scope. This has the same result as {@link #eval(Ast)}, but the compiled
+     * code can be faster when parts of the ast are executed many times, such
+     * as the body of a loop or function.
+     */
+    public Object execute(Ast ast) {
+        return compiler.compile(ast, scope).execute(scope);
+    }
+
+    /**
+     * Calls a function with the asts of its arguments in the given scope, for
+     * compiled code calling a function which evaluates its own arguments.
+     */
+    Object apply(Function<List<Ast>, Object> function, List<Ast> args, Scope scope) {
+        Scope current = this.scope;
+        this.scope = scope;
+        try {
+            return function.apply(args);
+        } finally {
+            this.scope = current;
+        }
+    }
+
+    /**
+     * Returns the number of times a function has been compiled to bytecode.
+     */
+    public int getPromotions() {
+        return promotions;
+    }
+
+    /**
+     * Returns the number of times a function compiled to bytecode has gone
+     * back to being run as nodes, because a name it assumed the value of was
+     * bound again.
+     */
+    public int getDeoptimizations() {
+        return deoptimizations;
+    }
+
+    void promoted(Symbol name, int count) {
+        promotions++;
+        if (trace != null)
+            trace.println("Promoted " + name + " after " + count + " calls and iterations.");
+    }
+
+    void deoptimized(Symbol name, Symbol guard) {
+        deoptimizations++;
+        if (trace != null)
+            trace.println("Deoptimized " + name + " since " + guard + " was bound.");
+    }
+
+    /**
+     * A special form which can evaluate its last argument in tail position,
+     * where a call to a {@link Closure} is returned as a {@link TailCall}.
+     */
+    private interface Form extends Function<List<Ast>, Object> {
+
+        Object apply(List<Ast> args, boolean tail);
+
+        @Override
+        default Object apply(List<Ast> args) {
+            return apply(args, false);
+        }
+
+    }
+
+    /**
+     * A function defined by the interpreter, which evaluates the body in a new
+     * frame with the body in tail position.
+     */
+    private final class Lambda extends Closure {
+
+        private final Ast body;
+
+        Lambda(Resolver.Layout layout, Scope parent, Ast body) {
+            super(Interpreter.this, layout, parent);
+            this.body = body;
+        }
+
+        @Override
+        Object run(Scope frame, Object[] slots) {
+            Scope current = scope;
+            scope = frame;
+            Object result = eval(body, true);
+            scope = current;
+            return result;
+        }
+
+    }
+
+    /**
+     * Returns the function from the standard library with the given name, or
+     * null if there isn't one.
+     */
+    Function<List<Ast>, Object> getLibrary(Symbol name) {
+        return library.get(name);
+    }
+
     /**
      * Delegates evaluation to the method for the specific instance of AST. This
      * is another approach to implementing the visitor pattern.
@@ -54,31 +179,67 @@ public final class Interpreter {
         }
     }
 
+    /**
+     * Evaluates the ast, which if it is in tail position may return a
+     * {@link TailCall} instead of calling a function.
+     */
+    private Object eval(Ast ast, boolean tail) {
+        if (tail && ast instanceof Ast.Term)
+            return eval((Ast.Term) ast, true);
+        return eval(ast);
+    }
+
     /**
      * Evaluations the Term ast, which returns the value resulting by calling
      * the function stored under the term's name in the current scope. You will
      * need to check that the type of the value is a {@link Function}, and cast
-     * to the type {@code Function<List<Ast>, Object>}.
+     * to the type {@code Function<List<Ast>, Object>}. The function of an
+     * unresolved term is found through its {@link InlineCache}, which is
+     * created the first time the term is evaluated.
      */
     private Object eval(Ast.Term ast) {
-        Ast.Identifier identifier = new Ast.Identifier(ast.getName());
-        Function<List<Ast>, Object> fun = requireType(Function.class,eval(identifier));
+        return eval(ast, false);
+    }
+
+    private Object eval(Ast.Term ast, boolean tail) {
+        Object value;
+        if (ast.getDepth() >= 0) {
+            value = scope.load(ast.getDepth(), ast.getSlot());
+        } else {
+            InlineCache cache = caches.get(ast);
+            if (cache == null) {
+                if (caches.size() == CACHES)
+                    caches.clear();
+                cache = new InlineCache(ast.getSymbol());
+                caches.put(ast, cache);
+            }
+            value = cache.lookup(scope);
+        }
+        Function<List<Ast>, Object> fun = requireType(Function.class, value);
+        if (tail && fun instanceof Closure)
+            return new TailCall((Closure) fun, ((Closure) fun).evaluate(ast.getArgs()));
+        else if (tail && fun instanceof Form)
+            return ((Form) fun).apply(ast.getArgs(), true);
         return fun.apply(ast.getArgs());
     }
 
     /**
      * Evaluates the Identifier ast, which returns the value stored under the
-     * identifier's name in the current scope.
+     * identifier's name in the current scope. Identifiers resolved by the
+     * {@link Resolver} are loaded from their frame directly.
      */
     private Object eval(Ast.Identifier ast) {
-        return scope.lookup(ast.getName());
+        if (ast.getDepth() >= 0)
+            return scope.load(ast.getDepth(), ast.getSlot());
+        return scope.lookup(ast.getSymbol());
     }
 
     /**
-     * Evaluates the NumberLiteral ast, which returns the stored number value.
+     * Evaluates the NumberLiteral ast, which returns the stored number value
+     * in its representation from {@link Numbers}.
      */
-    private BigDecimal eval(Ast.NumberLiteral ast) {
-        return ast.getValue();
+    private Object eval(Ast.NumberLiteral ast) {
+        return Numbers.valueOf(ast.getValue());
     }
 
     /**
@@ -91,238 +252,279 @@ public final class Interpreter {
      * library.
      */
     private void init() {
-        scope.define("print", (Function<List<Ast>, Object>) args -> {
-            List<Object> evaluated = args.stream().map(this::eval).collect(Collectors.toList());
-            evaluated.forEach(out::print);
+        library("print", new Builtin(this, null, values -> {
+            for (Object value : values) {
+                out.print(value);
+            }
             out.println();
             return VOID;
-        });
-        scope.define("+", (Function<List<Ast>, Object>) args -> {
-            List<Object> evaluated = args.stream().map(this::eval).collect(Collectors.toList());
-            BigDecimal result = BigDecimal.ZERO;
-            for (Object obj : evaluated) {
-                result = result.add(requireType(BigDecimal.class, obj));
+        })
+                .nullary(() -> {
+                    out.println();
+                    return VOID;
+                })
+                .unary(x -> {
+                    out.print(x);
+                    out.println();
+                    return VOID;
+                }));
+        library("+", new Builtin(this, null, values -> {
+            Object result = Numbers.valueOf(0);
+            for (Object obj : values) {
+                result = Numbers.add(result, Numbers.require(obj));
             }
             return result;
-        });
-        scope.define("-", (Function<List<Ast>, Object>) args -> {
-            List<BigDecimal> evaluated = args.stream()
-                    .map(a -> requireType(BigDecimal.class, eval(a)))
-                    .collect(Collectors.toList());
-            if (evaluated.size() == 1)
-                return evaluated.get(0).negate();
-            else if (evaluated.size() == 0)
+        })
+                .nullary(() -> Numbers.valueOf(0))
+                .unary(x -> Numbers.add(Numbers.valueOf(0), Numbers.require(x)))
+                .binary((x, y) -> Numbers.add(Numbers.require(x), Numbers.require(y)))
+                .ternary((x, y, z) -> Numbers.add(Numbers.add(Numbers.require(x), Numbers.require(y)), Numbers.require(z))));
+        library("-", new Builtin(this, Number.class, values -> {
+            if (values.length == 1)
+                return Numbers.negate(values[0]);
+            else if (values.length == 0)
                 throw new EvalException("Error: No arguments for subtraction");
             else {
-                BigDecimal number = evaluated.get(0);
-                for (int i = 1; i < evaluated.size(); i++) {
-                        number = number.subtract(evaluated.get(i));
+                Object number = values[0];
+                for (int i = 1; i < values.length; i++) {
+                        number = Numbers.subtract(number, values[i]);
                 }
                 return number;
             }
-        });
-        scope.define("*", (Function<List<Ast>, Object>) args -> {
-            List<BigDecimal> evaluated = args.stream()
-                    .map(a -> requireType(BigDecimal.class, eval(a)))
-                    .collect(Collectors.toList());
-            BigDecimal result = BigDecimal.ONE;
-            for (BigDecimal num : evaluated) {
-                result = result.multiply(num);
+        })
+                .unary(Numbers::negate)
+                .binary(Numbers::subtract)
+                .ternary((x, y, z) -> Numbers.subtract(Numbers.subtract(x, y), z)));
+        library("*", new Builtin(this, Number.class, values -> {
+            Object result = Numbers.valueOf(1);
+            for (Object num : values) {
+                result = Numbers.multiply(result, num);
             }
             return result;
-        });
-        scope.define("/", (Function<List<Ast>, Object>) args -> {
-            List<BigDecimal> evaluated = args.stream()
-                    .map(a -> requireType(BigDecimal.class, eval(a)))
-                    .collect(Collectors.toList());
-            BigDecimal result = BigDecimal.ZERO;
-            BigDecimal div = BigDecimal.ONE;
-            if (evaluated.size() == 1)
-                return div.divide(evaluated.get(0),RoundingMode.HALF_EVEN);
-            else if (evaluated.size() == 0)
+        })
+                .nullary(() -> Numbers.valueOf(1))
+                .unary(x -> Numbers.multiply(Numbers.valueOf(1), x))
+                .binary(Numbers::multiply)
+                .ternary((x, y, z) -> Numbers.multiply(Numbers.multiply(x, y), z)));
+        library("/", new Builtin(this, Number.class, values -> {
+            Object result;
+            Object div = Numbers.valueOf(1);
+            if (values.length == 1)
+                return Numbers.divide(div, values[0]);
+            else if (values.length == 0)
                 throw new EvalException("Error: No arguments for Division");
             else {
-                result = result.add(evaluated.get(0));
-                for (int i = 1; i < evaluated.size(); i++) {
-                    div = div.multiply(evaluated.get(i));
+                for (int i = 1; i < values.length; i++) {
+                    div = Numbers.multiply(div, values[i]);
                 }
-                try {
-                    result = result.divide(div,  RoundingMode.HALF_EVEN);
-                }
-                catch (ArithmeticException e) { throw new EvalException("Error: Cannot divide by zero"); }
+                result = divide(values[0], div);
             }
             return result;
-        });
+        })
+                .unary(x -> Numbers.divide(Numbers.valueOf(1), x))
+                .binary((x, y) -> divide(x, y))
+                .ternary((x, y, z) -> divide(x, Numbers.multiply(y, z))));
         scope.define("true", true);
         scope.define("false", false);
-        scope.define("equals?", (Function<List<Ast>, Object>) args -> {
-            if (args.size() != 2)
-                throw new EvalException("Error: Two arguments required");
-            return (Objects.deepEquals(eval(args.get(0)),eval(args.get(1))));
-        });
-        scope.define("not", (Function<List<Ast>, Object>) args -> {
-            if (args.size() != 1)
-                throw new EvalException("Error: Single boolean is required");
-            if (Objects.deepEquals(requireType(Boolean.class, eval(args.get(0))), true))
+        library("equals?", new Builtin(this, 2, "Error: Two arguments required", values -> {
+            return (Objects.deepEquals(values[0],values[1]));
+        })
+                .binary(Objects::deepEquals));
+        library("not", new Builtin(this, 1, "Error: Single boolean is required", values -> {
+            if (Objects.deepEquals(requireType(Boolean.class, values[0]), true))
                 return false;
             return true;
-        });
-        scope.define("and", (Function<List<Ast>, Object>) args -> {
-            for (Ast arg: args) {
-                if (Objects.deepEquals(requireType(Boolean.class, eval(arg)), false))
+        })
+                .unary(x -> !requireType(Boolean.class, x)));
+        library("and", (Form) (args, tail) -> {
+            for (int i = 0; i < args.size() - 1; i++) {
+                if (Objects.deepEquals(requireType(Boolean.class, eval(args.get(i))), false))
                     return false;
             }
-            return true;
+            return args.isEmpty() ? true : TailCall.requireBoolean(eval(args.get(args.size() - 1), tail));
         });
-        scope.define("or", (Function<List<Ast>, Object>) args -> {
-            for (Ast arg: args) {
-                if (Objects.deepEquals(requireType(Boolean.class, eval(arg)), true))
+        library("or", (Form) (args, tail) -> {
+            for (int i = 0; i < args.size() - 1; i++) {
+                if (Objects.deepEquals(requireType(Boolean.class, eval(args.get(i))), true))
                     return true;
             }
-            return false;
+            return args.isEmpty() ? false : TailCall.requireBoolean(eval(args.get(args.size() - 1), tail));
         });
-        scope.define("<", (Function<List<Ast>, Object>) args -> {
-            List<Comparable> evaluated = args.stream()
-                    .map(a -> requireType(Comparable.class, eval(a)))
-                    .collect(Collectors.toList());
+        library("<", new Builtin(this, Comparable.class, values -> {
             boolean x = true;
-            if (evaluated.size() == 0)
+            if (values.length == 0)
                 return x;
             try {
-                for (int i = 0; i < evaluated.size() - 1; i++) {
-                    if (evaluated.get(i).compareTo(evaluated.get(i+1)) >= 0)
+                for (int i = 0; i < values.length - 1; i++) {
+                    if (compare(values[i], values[i+1]) >= 0)
                         x = false;
                 }
             }
             catch (ClassCastException w) { throw new EvalException("Error: Arguments not comparable"); }
             return x;
-        });
-        scope.define("<=", (Function<List<Ast>, Object>) args -> {
-            List<Comparable> evaluated = args.stream()
-                    .map(a -> requireType(Comparable.class, eval(a)))
-                    .collect(Collectors.toList());
+        })
+                .nullary(() -> true)
+                .unary(x -> true)
+                .binary((x, y) -> compareArguments(x, y) < 0)
+                .ternary((x, y, z) -> compareArguments(x, y) < 0 & compareArguments(y, z) < 0));
+        library("<=", new Builtin(this, Comparable.class, values -> {
             boolean x = true;
-            if (evaluated.size() == 0)
+            if (values.length == 0)
                 return x;
             try {
-                for (int i = 0; i < evaluated.size() - 1; i++) {
-                    if (evaluated.get(i).compareTo(evaluated.get(i+1)) > 0)
+                for (int i = 0; i < values.length - 1; i++) {
+                    if (compare(values[i], values[i+1]) > 0)
                         x = false;
                 }
             }
             catch (ClassCastException w) { throw new EvalException("Error: Arguments not comparable"); }
             return x;
-        });
-        scope.define(">", (Function<List<Ast>, Object>) args -> {
-            List<Comparable> evaluated = args.stream()
-                    .map(a -> requireType(Comparable.class, eval(a)))
-                    .collect(Collectors.toList());
+        })
+                .nullary(() -> true)
+                .unary(x -> true)
+                .binary((x, y) -> compareArguments(x, y) <= 0)
+                .ternary((x, y, z) -> compareArguments(x, y) <= 0 & compareArguments(y, z) <= 0));
+        library(">", new Builtin(this, Comparable.class, values -> {
             boolean x = true;
-            if (evaluated.size() == 0)
+            if (values.length == 0)
                 return x;
             try {
-                for (int i = 0; i < evaluated.size() - 1; i++) {
-                    if (evaluated.get(i).compareTo(evaluated.get(i+1)) <= 0)
+                for (int i = 0; i < values.length - 1; i++) {
+                    if (compare(values[i], values[i+1]) <= 0)
                         x = false;
                 }
             }
             catch (ClassCastException w) { throw new EvalException("Error: Arguments not comparable"); }
             return x;
-        });
-        scope.define(">=", (Function<List<Ast>, Object>) args -> {
-            List<Comparable> evaluated = args.stream()
-                    .map(a -> requireType(Comparable.class, eval(a)))
-                    .collect(Collectors.toList());
+        })
+                .nullary(() -> true)
+                .unary(x -> true)
+                .binary((x, y) -> compareArguments(x, y) > 0)
+                .ternary((x, y, z) -> compareArguments(x, y) > 0 & compareArguments(y, z) > 0));
+        library(">=", new Builtin(this, Comparable.class, values -> {
             boolean x = true;
-            if (evaluated.size() == 0)
+            if (values.length == 0)
                 return x;
             try {
-                for (int i = 0; i < evaluated.size() - 1; i++) {
-                    if (evaluated.get(i).compareTo(evaluated.get(i+1)) < 0)
+                for (int i = 0; i < values.length - 1; i++) {
+                    if (compare(values[i], values[i+1]) < 0)
                         x = false;
                 }
             }
             catch (ClassCastException w) { throw new EvalException("Error: Arguments not comparable"); }
             return x;
-        });
-        scope.define("list", (Function<List<Ast>, Object>) args -> {
-            LinkedList<Object> list = new LinkedList<>();
-            for (Ast arg : args) {
-                list.add(eval(arg));
-            }
-            return list;
-        });
-        scope.define("range", (Function<List<Ast>, Object>) args -> {
-            List<BigDecimal> evaluated = args.stream()
-                    .map(a -> requireType(BigDecimal.class, eval(a)))
-                    .collect(Collectors.toList());
-            LinkedList<Object> list = new LinkedList<>();
-            BigDecimal start,end;
-            if (evaluated.size() != 2)
-                throw new EvalException("Error: Two arguments required");
-            start = evaluated.get(0);
-            end = evaluated.get(1);
-            if (start.compareTo(end) == 0 )
-                return list;
-            else if(start.stripTrailingZeros().scale() > 0 || end.stripTrailingZeros().scale() > 0)
-                throw new EvalException("Error: Arguments are not integers");
-            else if (start.compareTo(end) == 1)
-                throw new EvalException("Error: First argument > Second argument");
-            for (int i = start.intValueExact(); i < end.intValueExact(); i++) {
-                list.add(new BigDecimal(i));
-            }
-            return list;
-        });
-        scope.define("define", (Function<List<Ast>, Object>) args -> {
+        })
+                .nullary(() -> true)
+                .unary(x -> true)
+                .binary((x, y) -> compareArguments(x, y) >= 0)
+                .ternary((x, y, z) -> compareArguments(x, y) >= 0 & compareArguments(y, z) >= 0));
+        library("list", new Builtin(this, null, values -> new WhispList(values.clone()))
+                .nullary(() -> WhispList.EMPTY)
+                .unary(x -> new WhispList(x))
+                .binary((x, y) -> new WhispList(x, y))
+                .ternary((x, y, z) -> new WhispList(x, y, z)));
+        library("range", new Builtin(this, Number.class, values -> {
+            if (values.length != 2 && values.length != 3)
+                throw new EvalException("Error: Two or three arguments required");
+            return Range.of(values[0], values[1], values.length == 3 ? values[2] : Numbers.valueOf(1));
+        })
+                .binary((x, y) -> Range.of(x, y, Numbers.valueOf(1)))
+                .ternary(Range::of));
+        library("length", new Builtin(this, 1, "Error: Single sequence is required", values -> Sequences.length(values[0]))
+                .unary(Sequences::length));
+        library("nth", new Builtin(this, 2, "Error: Two arguments required", values -> Sequences.nth(values[0], values[1]))
+                .binary(Sequences::nth));
+        library("map", new Builtin(this, 2, "Error: Two arguments required", values -> Sequences.map(values[0], values[1]))
+                .binary(Sequences::map));
+        library("filter", new Builtin(this, 2, "Error: Two arguments required", values -> Sequences.filter(values[0], values[1]))
+                .binary(Sequences::filter));
+        library("reduce", new Builtin(this, null, values -> {
+            if (values.length == 2)
+                return Sequences.reduce(values[0], values[1]);
+            else if (values.length == 3)
+                return Sequences.reduce(values[0], values[1], values[2]);
+            throw new EvalException("Error: Two or three arguments required");
+        })
+                .binary(Sequences::reduce)
+                .ternary(Sequences::reduce));
+        library("vector", new Builtin(this, null, PersistentVector::of)
+                .nullary(() -> PersistentVector.EMPTY));
+        library("hash-map", new Builtin(this, null, PersistentHashMap::of)
+                .nullary(() -> PersistentHashMap.EMPTY));
+        library("get", new Builtin(this, null, values -> {
+            if (values.length == 2)
+                return get(values[0], values[1], null);
+            else if (values.length == 3)
+                return get(values[0], values[1], values[2]);
+            throw new EvalException("Error: Two or three arguments required");
+        })
+                .binary((x, y) -> get(x, y, null))
+                .ternary(Interpreter::get));
+        library("assoc", new Builtin(this, 3, "Error: Three arguments required", values -> assoc(values[0], values[1], values[2]))
+                .ternary(Interpreter::assoc));
+        library("dissoc", new Builtin(this, 2, "Error: Two arguments required", values -> dissoc(values[0], values[1]))
+                .binary(Interpreter::dissoc));
+        library("conj", new Builtin(this, 2, "Error: Two arguments required", values -> conj(values[0], values[1]))
+                .binary(Interpreter::conj));
+        library("array", new Builtin(this, 1, "Error: Single sequence is required", values -> NumericArray.of(values[0]))
+                .unary(NumericArray::of));
+        library("array-add", new Builtin(this, 2, "Error: Two arguments required", values -> NumericArray.add(values[0], values[1]))
+                .binary(NumericArray::add));
+        library("array-mul", new Builtin(this, 2, "Error: Two arguments required", values -> NumericArray.multiply(values[0], values[1]))
+                .binary(NumericArray::multiply));
+        library("array-dot", new Builtin(this, 2, "Error: Two arguments required", values -> NumericArray.dot(values[0], values[1]))
+                .binary(NumericArray::dot));
+        library("array-sum", new Builtin(this, 1, "Error: Single array is required", values -> NumericArray.sum(values[0]))
+                .unary(NumericArray::sum));
+        library("array-min", new Builtin(this, 1, "Error: Single array is required", values -> NumericArray.min(values[0]))
+                .unary(NumericArray::min));
+        library("array-max", new Builtin(this, 1, "Error: Single array is required", values -> NumericArray.max(values[0]))
+                .unary(NumericArray::max));
+        library("array-slice", new Builtin(this, 3, "Error: Three arguments required", values -> NumericArray.slice(values[0], values[1], values[2]))
+                .ternary(NumericArray::slice));
+        library("define", args -> {
             if (args.size() != 2)
                 throw new EvalException("Error: Expecting two arguments");
             // Define variable
             if (args.get(0) instanceof Ast.Identifier)
-                scope.define(((Ast.Identifier) args.get(0)).getName(), eval(args.get(1)));
+                scope.define(((Ast.Identifier) args.get(0)).getSymbol(), eval(args.get(1)));
             else if (args.get(0) instanceof Ast.Term)
             {
-                String name = ((Ast.Term) args.get(0)).getName();
-                List<String> parameters = ((Ast.Term) args.get(0)).getArgs().stream()
-                        .map(a -> requireType(Ast.Identifier.class, a).getName())
+                Symbol name = ((Ast.Term) args.get(0)).getSymbol();
+                List<Symbol> parameters = ((Ast.Term) args.get(0)).getArgs().stream()
+                        .map(a -> requireType(Ast.Identifier.class, a).getSymbol())
                         .collect(Collectors.toList());
                 Scope parent = scope;
-                scope.define(name, (Function<List<Ast>, Object>) arguments -> {
-                    List<Object> evaluated = arguments.stream().map(this::eval).collect(Collectors.toList());
-                    if (parameters.size() != evaluated.size())
-                        throw new EvalException("Invalid number of arguments");
-                    Scope current = scope;
-                    scope = new Scope(parent);
-                    for (int i = 0; i < parameters.size(); i++)
-                    {
-                        scope.define(parameters.get(i), evaluated.get(i));
-                    }
-                    Object result = eval(args.get(1));
-                    scope = current;
-                    return result;
-                });
+                Resolver.Layout layout = Resolver.layout(parameters, args.get(1));
+                parent.invalidate(layout);
+                Ast body = Resolver.resolve(args.get(1), layout, parent);
+                scope.define(name, new Lambda(layout, parent, body));
             }
             else
                 throw new EvalException("Invalid first argument");
             return VOID;
         });
-        scope.define("set!", (Function<List<Ast>, Object>) args -> {
+        library("set!", args -> {
             if (args.size() != 2)
                 throw new EvalException("Error: Expecting two arguments");
             Ast.Identifier ast = requireType(Ast.Identifier.class, args.get(0));
-            scope.set(ast.getName(), eval(args.get(1)));
+            if (ast.getDepth() >= 0)
+                scope.store(ast.getDepth(), ast.getSlot(), eval(args.get(1)));
+            else
+                scope.set(ast.getSymbol(), eval(args.get(1)));
             return VOID;
         });
-        scope.define("do", (Function<List<Ast>, Object>) args -> {
+        library("do", (Form) (args, tail) -> {
             Object x = VOID;
             scope = new Scope(scope);
-            for (Ast ast : args)
+            for (int i = 0; i < args.size(); i++)
             {
-                x = eval(ast);
+                x = eval(args.get(i), tail && i == args.size() - 1);
             }
             scope = scope.getParent();
             return x;
         });
-        scope.define("while", (Function<List<Ast>, Object>) args -> {
+        library("while", args -> {
             if (args.size() != 2) {
                 throw new EvalException( "Expected 2 arguments, received " + args.size() + "." );
             }
@@ -331,20 +533,19 @@ public final class Interpreter {
             }
             return VOID;
         });
-        scope.define("for", (Function<List<Ast>, Object>) args -> {
+        library("for", args -> {
             if (args.size() != 2) {
                 throw new EvalException( "Expected 2 arguments, received " + args.size() + "." );
             }
             Ast.Term term = requireType(Ast.Term.class,args.get(0));
             if (term.getArgs().size() != 1)
                 throw new EvalException( "Expected 1 arguments , received " + args.size() + "." );
-            LinkedList<Object> list = requireType(LinkedList.class, eval(term.getArgs().get(0)));
-            if (list.size() == 0)
+            Iterator<Object> iterator = Sequence.require(eval(term.getArgs().get(0))).traverse();
+            if (!iterator.hasNext())
                 return VOID;
             scope = new Scope(scope);
-            scope.define(term.getName(), "0");
-            for (int i = 0; i < list.size(); i++) {
-                scope.set(term.getName(), list.get(i));
+            while (iterator.hasNext()) {
+                scope.iterate(term.getSymbol(), iterator.next());
                 eval(args.get(1));
             }
             scope = scope.getParent();
@@ -353,11 +554,109 @@ public final class Interpreter {
     }
 
 
+    /**
+     * Defines a function from the standard library.
+     */
+    private void library(String name, Function<List<Ast>, Object> function) {
+        library.put(Symbol.of(name), function);
+        scope.define(name, function);
+    }
+
+    /**
+     * Returns the value of the key in a map, or the element at the index of a
+     * vector or list. If there isn't one, returns the value missing, or
+     * throws an exception if it is null.
+     */
+    private static Object get(Object collection, Object key, Object missing) {
+        Object value;
+        if (collection instanceof PersistentHashMap) {
+            value = ((PersistentHashMap) collection).getOrDefault(key, missing);
+            if (value == null)
+                throw new EvalException("Error: Key not found");
+            return value;
+        } else if (collection instanceof PersistentVector || collection instanceof WhispList) {
+            List<?> list = (List<?>) collection;
+            long index = Sequences.index(key);
+            if (index >= 0 && index < list.size())
+                return list.get((int) index);
+            else if (missing == null)
+                throw new EvalException("Error: Index out of bounds");
+            return missing;
+        }
+        throw new EvalException("Expected " + collection + " to have type PersistentHashMap.");
+    }
+
+    /**
+     * Returns a copy of a map with the key mapped to the value, or of a vector
+     * with the element at the index replaced or added to the end.
+     */
+    private static Object assoc(Object collection, Object key, Object value) {
+        if (collection instanceof PersistentVector) {
+            long index = Sequences.index(key);
+            if (index < 0 || index > Integer.MAX_VALUE)
+                throw new EvalException("Error: Index out of bounds");
+            return ((PersistentVector) collection).assoc((int) index, value);
+        }
+        return requireType(PersistentHashMap.class, collection).assoc(key, value);
+    }
+
+    private static Object dissoc(Object collection, Object key) {
+        return requireType(PersistentHashMap.class, collection).dissoc(key);
+    }
+
+    /**
+     * Returns a copy of a vector with the value added to the end, or of a map
+     * with an entry added from a sequence of a key and a value.
+     */
+    private static Object conj(Object collection, Object value) {
+        if (collection instanceof PersistentHashMap) {
+            Iterator<Object> pair = Sequence.require(value).iterator();
+            Object key = pair.hasNext() ? pair.next() : null;
+            Object mapped = pair.hasNext() ? pair.next() : null;
+            if (mapped == null || pair.hasNext())
+                throw new EvalException("Error: Expected a key and a value");
+            return ((PersistentHashMap) collection).assoc(key, mapped);
+        }
+        return requireType(PersistentVector.class, collection).conj(value);
+    }
+
+    /**
+     * Divides for the / function, where dividing by zero is an error.
+     */
+    private static Object divide(Object x, Object y) {
+        try {
+            return Numbers.divide(x, y);
+        }
+        catch (ArithmeticException e) { throw new EvalException("Error: Cannot divide by zero"); }
+    }
+
+    /**
+     * Compares two arguments of a comparison function, which is an error if
+     * they can't be compared.
+     */
+    private static int compareArguments(Object x, Object y) {
+        try {
+            return compare(x, y);
+        }
+        catch (ClassCastException w) { throw new EvalException("Error: Arguments not comparable"); }
+    }
+
+    /**
+     * Compares two values for the comparison functions, which throws a
+     * ClassCastException if they can't be compared.
+     */
+    @SuppressWarnings("unchecked")
+    private static int compare(Object x, Object y) {
+        if (Numbers.isNumber(x) && Numbers.isNumber(y))
+            return Numbers.compare(x, y);
+        return ((Comparable<Object>) x).compareTo(y);
+    }
+
     /**
      * A helper function for type checking, taking in a type and an object and
      * throws an exception if the object does not have the required type.
      */
-    private static <T> T requireType(Class<T> type, Object value) {
+    static <T> T requireType(Class<T> type, Object value) {
         if (type.isInstance(value)) {
             return type.cast(value);
         } else {
@@ -6,11 +6,18 @@ import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 final class InterpreterTests {
@@ -27,7 +34,7 @@ final class InterpreterTests {
 
     @Test
     void testNumber() {
-        test(new Ast.NumberLiteral(BigDecimal.ONE), BigDecimal.ONE, Collections.emptyMap());
+        test(new Ast.NumberLiteral(BigDecimal.ONE), 1L, Collections.emptyMap());
     }
 
     @Test
@@ -37,24 +44,24 @@ final class InterpreterTests {
 
     @ParameterizedTest
     @MethodSource
-    void testAddition(String test, Ast ast, BigDecimal expected) {
+    void testAddition(String test, Ast ast, Object expected) {
         test(ast, expected, Collections.emptyMap());
     }
 
     private static Stream<Arguments> testAddition() {
         return Stream.of(
-                Arguments.of("Zero Arguments", new Ast.Term("+", Arrays.asList()), BigDecimal.valueOf(0)),
+                Arguments.of("Zero Arguments", new Ast.Term("+", Arrays.asList()), 0L),
                 Arguments.of("Multiple Arguments", new Ast.Term("+", Arrays.asList(
                         new Ast.NumberLiteral(BigDecimal.ONE),
                         new Ast.NumberLiteral(BigDecimal.valueOf(2)),
                         new Ast.NumberLiteral(BigDecimal.valueOf(3))
-                )), BigDecimal.valueOf(6))
+                )), 6L)
         );
     }
 
     @ParameterizedTest
     @MethodSource
-    void testSubtraction(String test, Ast ast, BigDecimal expected) {
+    void testSubtraction(String test, Ast ast, Object expected) {
         test(ast, expected, Collections.emptyMap());
     }
 
@@ -63,15 +70,635 @@ final class InterpreterTests {
                 Arguments.of("Zero Arguments", new Ast.Term("-", Arrays.asList()), null),
                 Arguments.of("Single Argument", new Ast.Term("-", Arrays.asList(
                         new Ast.NumberLiteral(BigDecimal.ONE)
-                )), BigDecimal.valueOf(-1)),
+                )), -1L),
                 Arguments.of("Multiple Arguments", new Ast.Term("-", Arrays.asList(
                         new Ast.NumberLiteral(BigDecimal.ONE),
                         new Ast.NumberLiteral(BigDecimal.valueOf(2)),
                         new Ast.NumberLiteral(BigDecimal.valueOf(3))
-                )), BigDecimal.valueOf(-4))
+                )), -4L)
         );
     }
 
+    @ParameterizedTest
+    @MethodSource
+    void testNumbers(String test, Ast ast, Object expected) {
+        test(ast, expected, Collections.emptyMap());
+    }
+
+    private static Stream<Arguments> testNumbers() {
+        return Stream.of(
+                Arguments.of("Overflow", new Ast.Term("*", Arrays.asList(
+                        new Ast.NumberLiteral(BigDecimal.valueOf(Long.MAX_VALUE)),
+                        new Ast.NumberLiteral(BigDecimal.valueOf(2))
+                )), new BigInteger("18446744073709551614")),
+                Arguments.of("Demotion", new Ast.Term("-", Arrays.asList(
+                        new Ast.Term("+", Arrays.asList(
+                                new Ast.NumberLiteral(BigDecimal.valueOf(Long.MAX_VALUE)),
+                                new Ast.NumberLiteral(BigDecimal.ONE)
+                        )),
+                        new Ast.NumberLiteral(BigDecimal.ONE)
+                )), Long.MAX_VALUE),
+                Arguments.of("Scale", new Ast.Term("+", Arrays.asList(
+                        new Ast.NumberLiteral(new BigDecimal("0.5")),
+                        new Ast.NumberLiteral(new BigDecimal("0.5"))
+                )), new BigDecimal("1.0")),
+                Arguments.of("Rounding", new Ast.Term("/", Arrays.asList(
+                        new Ast.NumberLiteral(BigDecimal.valueOf(-7)),
+                        new Ast.NumberLiteral(BigDecimal.valueOf(2))
+                )), -4L)
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource
+    void testRange(String test, Ast ast, Object expected) {
+        test(ast, expected, Collections.emptyMap());
+    }
+
+    private static Stream<Arguments> testRange() {
+        return Stream.of(
+                Arguments.of("Step", new Ast.Term("equals?", Arrays.asList(
+                        new Ast.Term("range", Arrays.asList(
+                                new Ast.NumberLiteral(BigDecimal.TEN),
+                                new Ast.NumberLiteral(BigDecimal.ZERO),
+                                new Ast.NumberLiteral(BigDecimal.valueOf(-3))
+                        )),
+                        new Ast.Term("list", Arrays.asList(
+                                new Ast.NumberLiteral(BigDecimal.TEN),
+                                new Ast.NumberLiteral(BigDecimal.valueOf(7)),
+                                new Ast.NumberLiteral(BigDecimal.valueOf(4)),
+                                new Ast.NumberLiteral(BigDecimal.ONE)
+                        ))
+                )), true),
+                Arguments.of("Long Bounds", new Ast.Term("equals?", Arrays.asList(
+                        new Ast.Term("range", Arrays.asList(
+                                new Ast.NumberLiteral(BigDecimal.valueOf(Long.MAX_VALUE - 1)),
+                                new Ast.NumberLiteral(BigDecimal.valueOf(Long.MAX_VALUE))
+                        )),
+                        new Ast.Term("list", Arrays.asList(
+                                new Ast.NumberLiteral(BigDecimal.valueOf(Long.MAX_VALUE - 1))
+                        ))
+                )), true),
+                Arguments.of("Long Equal", new Ast.Term("equals?", Arrays.asList(
+                        new Ast.Term("range", Arrays.asList(
+                                new Ast.NumberLiteral(BigDecimal.ZERO),
+                                new Ast.NumberLiteral(BigDecimal.valueOf(100000000000L))
+                        )),
+                        new Ast.Term("range", Arrays.asList(
+                                new Ast.NumberLiteral(BigDecimal.ZERO),
+                                new Ast.NumberLiteral(BigDecimal.valueOf(100000000000L))
+                        ))
+                )), true),
+                Arguments.of("Zero Step", new Ast.Term("range", Arrays.asList(
+                        new Ast.NumberLiteral(BigDecimal.ZERO),
+                        new Ast.NumberLiteral(BigDecimal.ONE),
+                        new Ast.NumberLiteral(BigDecimal.ZERO)
+                )), null)
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource
+    void testSequences(String test, Ast ast, Object expected) {
+        test(ast, expected, Collections.emptyMap());
+    }
+
+    private static Stream<Arguments> testSequences() {
+        return Stream.of(
+                Arguments.of("Reduce Map", new Ast.Term("reduce", Arrays.asList(
+                        new Ast.Identifier("+"),
+                        new Ast.NumberLiteral(BigDecimal.ZERO),
+                        new Ast.Term("map", Arrays.asList(
+                                new Ast.Identifier("-"),
+                                new Ast.Term("range", Arrays.asList(
+                                        new Ast.NumberLiteral(BigDecimal.ZERO),
+                                        new Ast.NumberLiteral(BigDecimal.valueOf(5))
+                                ))
+                        ))
+                )), -10L),
+                Arguments.of("Length Filter", new Ast.Term("length", Arrays.asList(
+                        new Ast.Term("filter", Arrays.asList(
+                                new Ast.Identifier("not"),
+                                new Ast.Term("list", Arrays.asList(
+                                        new Ast.Identifier("true"),
+                                        new Ast.Identifier("false"),
+                                        new Ast.Identifier("false")
+                                ))
+                        ))
+                )), 2L),
+                Arguments.of("Nth", new Ast.Term("nth", Arrays.asList(
+                        new Ast.Term("range", Arrays.asList(
+                                new Ast.NumberLiteral(BigDecimal.ZERO),
+                                new Ast.NumberLiteral(BigDecimal.TEN),
+                                new Ast.NumberLiteral(BigDecimal.valueOf(3))
+                        )),
+                        new Ast.NumberLiteral(BigDecimal.valueOf(2))
+                )), 6L),
+                Arguments.of("Nth Out Of Bounds", new Ast.Term("nth", Arrays.asList(
+                        new Ast.Term("list", Arrays.asList()),
+                        new Ast.NumberLiteral(BigDecimal.ZERO)
+                )), null)
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource
+    void testCollections(String test, Ast ast, Object expected) {
+        test(ast, expected, Collections.emptyMap());
+    }
+
+    private static Stream<Arguments> testCollections() {
+        return Stream.of(
+                Arguments.of("Vector Assoc", new Ast.Term("get", Arrays.asList(
+                        new Ast.Term("assoc", Arrays.asList(
+                                new Ast.Term("vector", Arrays.asList(
+                                        new Ast.NumberLiteral(BigDecimal.ONE),
+                                        new Ast.NumberLiteral(BigDecimal.valueOf(2))
+                                )),
+                                new Ast.NumberLiteral(BigDecimal.ONE),
+                                new Ast.NumberLiteral(BigDecimal.TEN)
+                        )),
+                        new Ast.NumberLiteral(BigDecimal.ONE)
+                )), 10L),
+                Arguments.of("Vector Conj", new Ast.Term("conj", Arrays.asList(
+                        new Ast.Term("vector", Arrays.asList()),
+                        new Ast.NumberLiteral(BigDecimal.ONE)
+                )), Arrays.asList(1L)),
+                Arguments.of("Map Dissoc", new Ast.Term("get", Arrays.asList(
+                        new Ast.Term("dissoc", Arrays.asList(
+                                new Ast.Term("hash-map", Arrays.asList(
+                                        new Ast.StringLiteral("a"),
+                                        new Ast.NumberLiteral(BigDecimal.ONE)
+                                )),
+                                new Ast.StringLiteral("a")
+                        )),
+                        new Ast.StringLiteral("a"),
+                        new Ast.NumberLiteral(BigDecimal.ZERO)
+                )), 0L),
+                Arguments.of("Key Not Found", new Ast.Term("get", Arrays.asList(
+                        new Ast.Term("hash-map", Arrays.asList()),
+                        new Ast.StringLiteral("a")
+                )), null)
+        );
+    }
+
+    @Test
+    void testVectorLevels() {
+        // 2000 elements fill the tail, the first level of the tree and then a root one level higher
+        PersistentVector vector = PersistentVector.EMPTY;
+        List<Object> expected = new ArrayList<>();
+        for (long i = 0; i < 2000; i++) {
+            vector = vector.conj(i);
+            expected.add(i);
+            Assertions.assertEquals(i, vector.get((int) i));
+        }
+        Assertions.assertEquals(expected, vector);
+        for (int index : new int[] {0, 31, 32, 1023, 1024, 1055, 1056, 1999}) {
+            PersistentVector changed = vector.assoc(index, "x");
+            List<Object> copy = new ArrayList<>(expected);
+            copy.set(index, "x");
+            Assertions.assertEquals(copy, changed);
+            Assertions.assertEquals(expected, vector);
+        }
+    }
+
+    @Test
+    void testMapCollisions() {
+        // "Aa" and "BB" have the same hash code, as do the strings made of them
+        List<Object> keys = new ArrayList<>(Arrays.asList("Aa", "BB", "AaAa", "AaBB", "BBAa", "BBBB"));
+        for (long i = 0; i < 2000; i++) {
+            keys.add(i);
+        }
+        PersistentHashMap map = PersistentHashMap.EMPTY;
+        Map<Object, Object> expected = new HashMap<>();
+        for (Object key : keys) {
+            map = map.assoc(key, key.toString());
+            expected.put(key, key.toString());
+        }
+        Assertions.assertEquals(expected, map);
+        map = map.assoc("BB", 0L);
+        expected.put("BB", 0L);
+        Assertions.assertEquals(expected, map);
+        Collections.shuffle(keys, new Random(0));
+        for (Object key : keys) {
+            map = map.dissoc(key);
+            expected.remove(key);
+            Assertions.assertNull(map.get(key));
+            Assertions.assertEquals(expected.size(), map.size());
+            if (expected.size() % 100 == 0 || expected.size() < 8)
+                Assertions.assertEquals(expected, map);
+        }
+        Assertions.assertSame(PersistentHashMap.EMPTY, map);
+    }
+
+    @ParameterizedTest
+    @MethodSource
+    void testArrays(String test, Ast ast, Object expected) {
+        test(ast, expected, Collections.emptyMap());
+    }
+
+    private static Stream<Arguments> testArrays() {
+        return Stream.of(
+                Arguments.of("Sum", new Ast.Term("array-sum", Arrays.asList(
+                        new Ast.Term("array", Arrays.asList(
+                                new Ast.Term("range", Arrays.asList(
+                                        new Ast.NumberLiteral(BigDecimal.ZERO),
+                                        new Ast.NumberLiteral(BigDecimal.valueOf(100))
+                                ))
+                        ))
+                )), 4950L),
+                Arguments.of("Dot Doubles", new Ast.Term("array-dot", Arrays.asList(
+                        new Ast.Term("array", Arrays.asList(
+                                new Ast.Term("list", Arrays.asList(
+                                        new Ast.NumberLiteral(new BigDecimal("0.5")),
+                                        new Ast.NumberLiteral(BigDecimal.valueOf(2))
+                                ))
+                        )),
+                        new Ast.Term("array", Arrays.asList(
+                                new Ast.Term("list", Arrays.asList(
+                                        new Ast.NumberLiteral(BigDecimal.valueOf(4)),
+                                        new Ast.NumberLiteral(BigDecimal.valueOf(3))
+                                ))
+                        ))
+                )), new BigDecimal("8.0")),
+                Arguments.of("Slice", new Ast.Term("array-max", Arrays.asList(
+                        new Ast.Term("array-slice", Arrays.asList(
+                                new Ast.Term("array", Arrays.asList(
+                                        new Ast.Term("range", Arrays.asList(
+                                                new Ast.NumberLiteral(BigDecimal.ZERO),
+                                                new Ast.NumberLiteral(BigDecimal.TEN)
+                                        ))
+                                )),
+                                new Ast.NumberLiteral(BigDecimal.valueOf(2)),
+                                new Ast.NumberLiteral(BigDecimal.valueOf(5))
+                        ))
+                )), 4L),
+                Arguments.of("Different Sizes", new Ast.Term("array-add", Arrays.asList(
+                        new Ast.Term("array", Arrays.asList(
+                                new Ast.Term("list", Arrays.asList(new Ast.NumberLiteral(BigDecimal.ONE)))
+                        )),
+                        new Ast.Term("array", Arrays.asList(
+                                new Ast.Term("list", Arrays.asList())
+                        ))
+                )), null),
+                Arguments.of("Inexact Integer", new Ast.Term("array", Arrays.asList(
+                        new Ast.Term("list", Arrays.asList(
+                                new Ast.NumberLiteral(new BigDecimal("9007199254740993")),
+                                new Ast.NumberLiteral(new BigDecimal("0.5"))
+                        ))
+                )), null),
+                Arguments.of("Inexact Add", new Ast.Term("array-add", Arrays.asList(
+                        new Ast.Term("array", Arrays.asList(
+                                new Ast.Term("list", Arrays.asList(new Ast.NumberLiteral(new BigDecimal("9007199254740993"))))
+                        )),
+                        new Ast.Term("array", Arrays.asList(
+                                new Ast.Term("list", Arrays.asList(new Ast.NumberLiteral(new BigDecimal("0.5"))))
+                        ))
+                )), null)
+        );
+    }
+
+    @Test
+    void testClosure() {
+        // (do (define (counter n) (do (define (bump) (set! n (+ n 1))) (bump) (bump) n)) (counter 1))
+        Ast ast = new Ast.Term("do", Arrays.asList(
+                new Ast.Term("define", Arrays.asList(
+                        new Ast.Term("counter", Arrays.asList(new Ast.Identifier("n"))),
+                        new Ast.Term("do", Arrays.asList(
+                                new Ast.Term("define", Arrays.asList(
+                                        new Ast.Term("bump", Arrays.asList()),
+                                        new Ast.Term("set!", Arrays.asList(
+                                                new Ast.Identifier("n"),
+                                                new Ast.Term("+", Arrays.asList(
+                                                        new Ast.Identifier("n"),
+                                                        new Ast.NumberLiteral(BigDecimal.ONE)
+                                                ))
+                                        ))
+                                )),
+                                new Ast.Term("bump", Arrays.asList()),
+                                new Ast.Term("bump", Arrays.asList()),
+                                new Ast.Identifier("n")
+                        ))
+                )),
+                new Ast.Term("counter", Arrays.asList(new Ast.NumberLiteral(BigDecimal.ONE)))
+        ));
+        test(ast, 3L, Collections.emptyMap());
+    }
+
+    @Test
+    void testMapRemembered() {
+        // (do (define n 0) (define (f x) (do (set! n (+ n 1)) x)) (define xs (map f (list 1 2))) (length xs) (nth xs 1) (nth xs 0) n)
+        test(countMapCalls(
+                new Ast.Term("length", Arrays.asList(new Ast.Identifier("xs"))),
+                new Ast.Term("nth", Arrays.asList(new Ast.Identifier("xs"), new Ast.NumberLiteral(BigDecimal.ONE))),
+                new Ast.Term("nth", Arrays.asList(new Ast.Identifier("xs"), new Ast.NumberLiteral(BigDecimal.ZERO)))
+        ), 2L, Collections.emptyMap());
+    }
+
+    @Test
+    void testMapSinglePass() {
+        // (do (define n 0) (define (f x) (do (set! n (+ n 1)) x)) (define xs (map f (list 1 2))) (reduce + xs) (nth xs 1) (nth xs 0) n)
+        test(countMapCalls(
+                new Ast.Term("reduce", Arrays.asList(new Ast.Identifier("+"), new Ast.Identifier("xs"))),
+                new Ast.Term("nth", Arrays.asList(new Ast.Identifier("xs"), new Ast.NumberLiteral(BigDecimal.ONE))),
+                new Ast.Term("nth", Arrays.asList(new Ast.Identifier("xs"), new Ast.NumberLiteral(BigDecimal.ZERO)))
+        ), 4L, Collections.emptyMap());
+    }
+
+    /**
+     * Returns an ast which maps a function counting its calls in n over
+     * (list 1 2) as xs, evaluates the uses of xs, and then returns n.
+     */
+    private static Ast countMapCalls(Ast... uses) {
+        List<Ast> asts = new ArrayList<>(Arrays.asList(
+                new Ast.Term("define", Arrays.asList(
+                        new Ast.Identifier("n"),
+                        new Ast.NumberLiteral(BigDecimal.ZERO)
+                )),
+                new Ast.Term("define", Arrays.asList(
+                        new Ast.Term("f", Arrays.asList(new Ast.Identifier("x"))),
+                        new Ast.Term("do", Arrays.asList(
+                                new Ast.Term("set!", Arrays.asList(
+                                        new Ast.Identifier("n"),
+                                        new Ast.Term("+", Arrays.asList(
+                                                new Ast.Identifier("n"),
+                                                new Ast.NumberLiteral(BigDecimal.ONE)
+                                        ))
+                                )),
+                                new Ast.Identifier("x")
+                        ))
+                )),
+                new Ast.Term("define", Arrays.asList(
+                        new Ast.Identifier("xs"),
+                        new Ast.Term("map", Arrays.asList(
+                                new Ast.Identifier("f"),
+                                new Ast.Term("list", Arrays.asList(
+                                        new Ast.NumberLiteral(BigDecimal.ONE),
+                                        new Ast.NumberLiteral(BigDecimal.valueOf(2))
+                                ))
+                        ))
+                ))
+        ));
+        asts.addAll(Arrays.asList(uses));
+        asts.add(new Ast.Identifier("n"));
+        return new Ast.Term("do", asts);
+    }
+
+    @Test
+    void testRedefined() {
+        // (do (define (f x) (not x)) (define (not x) x) (f true))
+        Ast ast = new Ast.Term("do", Arrays.asList(
+                new Ast.Term("define", Arrays.asList(
+                        new Ast.Term("f", Arrays.asList(new Ast.Identifier("x"))),
+                        new Ast.Term("not", Arrays.asList(new Ast.Identifier("x")))
+                )),
+                new Ast.Term("define", Arrays.asList(
+                        new Ast.Term("not", Arrays.asList(new Ast.Identifier("x"))),
+                        new Ast.Identifier("x")
+                )),
+                new Ast.Term("f", Arrays.asList(new Ast.Identifier("true")))
+        ));
+        test(ast, true, Collections.emptyMap());
+    }
+
+    @Test
+    void testFor() {
+        // (do (define sum 0) (for (i (range 0 100000)) (set! sum (+ sum i))) (equals? (list sum) (list 4999950000)))
+        Ast ast = new Ast.Term("do", Arrays.asList(
+                new Ast.Term("define", Arrays.asList(
+                        new Ast.Identifier("sum"),
+                        new Ast.NumberLiteral(BigDecimal.ZERO)
+                )),
+                new Ast.Term("for", Arrays.asList(
+                        new Ast.Term("i", Arrays.asList(new Ast.Term("range", Arrays.asList(
+                                new Ast.NumberLiteral(BigDecimal.ZERO),
+                                new Ast.NumberLiteral(BigDecimal.valueOf(100000))
+                        )))),
+                        new Ast.Term("set!", Arrays.asList(
+                                new Ast.Identifier("sum"),
+                                new Ast.Term("+", Arrays.asList(
+                                        new Ast.Identifier("sum"),
+                                        new Ast.Identifier("i")
+                                ))
+                        ))
+                )),
+                new Ast.Term("equals?", Arrays.asList(
+                        new Ast.Term("list", Arrays.asList(new Ast.Identifier("sum"))),
+                        new Ast.Term("list", Arrays.asList(new Ast.NumberLiteral(BigDecimal.valueOf(4999950000L))))
+                ))
+        ));
+        test(ast, true, Collections.emptyMap());
+    }
+
+    @Test
+    void testForFunction() {
+        // (do (define n 3) (for (f (list + *)) (set! n (f n 2))) n)
+        Ast loop = new Ast.Term("for", Arrays.asList(
+                new Ast.Term("f", Arrays.asList(new Ast.Term("list", Arrays.asList(
+                        new Ast.Identifier("+"),
+                        new Ast.Identifier("*")
+                )))),
+                new Ast.Term("set!", Arrays.asList(
+                        new Ast.Identifier("n"),
+                        new Ast.Term("f", Arrays.asList(
+                                new Ast.Identifier("n"),
+                                new Ast.NumberLiteral(BigDecimal.valueOf(2))
+                        ))
+                ))
+        ));
+        Ast ast = new Ast.Term("do", Arrays.asList(
+                new Ast.Term("define", Arrays.asList(
+                        new Ast.Identifier("n"),
+                        new Ast.NumberLiteral(BigDecimal.valueOf(3))
+                )),
+                loop,
+                new Ast.Identifier("n")
+        ));
+        test(ast, 10L, Collections.emptyMap());
+    }
+
+    @Test
+    void testInlineCache() {
+        // (do (define (one) 1) (define (two) 2) (define f one) (define (call) (f)) (define a (call)) (set! f two) (+ a (call)))
+        Ast ast = new Ast.Term("do", Arrays.asList(
+                new Ast.Term("define", Arrays.asList(
+                        new Ast.Term("one", Arrays.asList()),
+                        new Ast.NumberLiteral(BigDecimal.ONE)
+                )),
+                new Ast.Term("define", Arrays.asList(
+                        new Ast.Term("two", Arrays.asList()),
+                        new Ast.NumberLiteral(BigDecimal.valueOf(2))
+                )),
+                new Ast.Term("define", Arrays.asList(
+                        new Ast.Identifier("f"),
+                        new Ast.Identifier("one")
+                )),
+                new Ast.Term("define", Arrays.asList(
+                        new Ast.Term("call", Arrays.asList()),
+                        new Ast.Term("f", Arrays.asList())
+                )),
+                new Ast.Term("define", Arrays.asList(
+                        new Ast.Identifier("a"),
+                        new Ast.Term("call", Arrays.asList())
+                )),
+                new Ast.Term("set!", Arrays.asList(
+                        new Ast.Identifier("f"),
+                        new Ast.Identifier("two")
+                )),
+                new Ast.Term("+", Arrays.asList(
+                        new Ast.Identifier("a"),
+                        new Ast.Term("call", Arrays.asList())
+                ))
+        ));
+        test(ast, 3L, Collections.emptyMap());
+    }
+
+    @Test
+    void testTailCall() {
+        // (do (define (loop n) (or (equals? n 0) (loop (- n 1)))) (loop 100000))
+        Ast ast = new Ast.Term("do", Arrays.asList(
+                new Ast.Term("define", Arrays.asList(
+                        new Ast.Term("loop", Arrays.asList(new Ast.Identifier("n"))),
+                        new Ast.Term("or", Arrays.asList(
+                                new Ast.Term("equals?", Arrays.asList(
+                                        new Ast.Identifier("n"),
+                                        new Ast.NumberLiteral(BigDecimal.ZERO)
+                                )),
+                                new Ast.Term("loop", Arrays.asList(
+                                        new Ast.Term("-", Arrays.asList(
+                                                new Ast.Identifier("n"),
+                                                new Ast.NumberLiteral(BigDecimal.ONE)
+                                        ))
+                                ))
+                        ))
+                )),
+                new Ast.Term("loop", Arrays.asList(new Ast.NumberLiteral(BigDecimal.valueOf(100000))))
+        ));
+        test(ast, true, Collections.emptyMap());
+    }
+
+    @Test
+    void testExecution() {
+        // (do (pause) (+ 1 2))
+        Ast ast = new Ast.Term("do", Arrays.asList(
+                new Ast.Term("pause", Arrays.asList()),
+                new Ast.Term("+", Arrays.asList(
+                        new Ast.NumberLiteral(BigDecimal.ONE),
+                        new Ast.NumberLiteral(BigDecimal.valueOf(2))
+                ))
+        ));
+        Interpreter interpreter = new Interpreter(new PrintWriter(System.out), new Scope(null));
+        Vm.Execution execution = new Vm(interpreter).start(Bytecode.compile(ast));
+        interpreter.scope.define("pause", (Function<List<Ast>, Object>) args -> {
+            execution.pause();
+            return Interpreter.VOID;
+        });
+        Assertions.assertFalse(execution.resume());
+        execution.pause();
+        Assertions.assertFalse(execution.resume());
+        Assertions.assertFalse(execution.isDone());
+        Assertions.assertTrue(execution.resume());
+        Assertions.assertEquals(3L, execution.getResult());
+    }
+
+    @Test
+    void testTiers() {
+        // (do (define (f x) (not x)) (f true) (f true) (define (not x) x) (f true))
+        Ast call = new Ast.Term("f", Arrays.asList(new Ast.Identifier("true")));
+        Ast ast = new Ast.Term("do", Arrays.asList(
+                new Ast.Term("define", Arrays.asList(
+                        new Ast.Term("f", Arrays.asList(new Ast.Identifier("x"))),
+                        new Ast.Term("not", Arrays.asList(new Ast.Identifier("x")))
+                )),
+                call,
+                call,
+                new Ast.Term("define", Arrays.asList(
+                        new Ast.Term("not", Arrays.asList(new Ast.Identifier("x"))),
+                        new Ast.Identifier("x")
+                )),
+                call
+        ));
+        Interpreter interpreter = new Interpreter(new PrintWriter(System.out), new Scope(null));
+        interpreter.threshold = 1;
+        Assertions.assertEquals(true, interpreter.execute(ast));
+        Assertions.assertEquals(1, interpreter.getPromotions());
+        Assertions.assertEquals(1, interpreter.getDeoptimizations());
+    }
+
+    @Test
+    void testSeparateVersions() {
+        // (define (f x) (not x)), (f true) twice, then (do (define (not x) x)) in another interpreter
+        Ast call = new Ast.Term("f", Arrays.asList(new Ast.Identifier("true")));
+        Interpreter interpreter = new Interpreter(new PrintWriter(System.out), new Scope(null));
+        interpreter.threshold = 1;
+        interpreter.execute(new Ast.Term("define", Arrays.asList(
+                new Ast.Term("f", Arrays.asList(new Ast.Identifier("x"))),
+                new Ast.Term("not", Arrays.asList(new Ast.Identifier("x")))
+        )));
+        interpreter.execute(call);
+        Assertions.assertEquals(false, interpreter.execute(call));
+        Assertions.assertEquals(1, interpreter.getPromotions());
+        Interpreter other = new Interpreter(new PrintWriter(System.out), new Scope(null));
+        other.execute(new Ast.Term("do", Arrays.asList(
+                new Ast.Term("define", Arrays.asList(
+                        new Ast.Term("not", Arrays.asList(new Ast.Identifier("x"))),
+                        new Ast.Identifier("x")
+                ))
+        )));
+        Assertions.assertEquals(false, interpreter.execute(call));
+        Assertions.assertEquals(0, interpreter.getDeoptimizations());
+    }
+
+    @Test
+    void testCorruptBytecode() {
+        byte[] bytes = Bytecode.compile(new Ast.Term("print", Arrays.asList())).encode();
+        int code = Bytecode.MAGIC.length + 5;
+        bytes[code] = (byte) 0x7F;
+        Assertions.assertThrows(IOException.class, () -> Bytecode.decode(bytes));
+        bytes[code] = (byte) 0xFF;
+        Assertions.assertThrows(IOException.class, () -> Bytecode.decode(bytes));
+    }
+
+    @ParameterizedTest
+    @MethodSource
+    void testUnverifiedBytecode(String test, int[] code) {
+        byte[] bytes = new Bytecode(null, null, null, code, new Object[0], new Symbol[0], Bytecode.sites(0),
+                new Bytecode[0]).encode();
+        Assertions.assertThrows(IOException.class, () -> Bytecode.decode(bytes));
+    }
+
+    private static Stream<Arguments> testUnverifiedBytecode() {
+        return Stream.of(
+                Arguments.of("Underflow", new int[] {Bytecode.POP, Bytecode.RETURN}),
+                Arguments.of("Load Outside Function", new int[] {Bytecode.JUMP, 2, Bytecode.LOAD, 0, 0, Bytecode.RETURN}),
+                Arguments.of("Jump Into Operand", new int[] {Bytecode.JUMP, 1, Bytecode.RETURN}),
+                Arguments.of("Inconsistent Stack", new int[] {Bytecode.TRUE, Bytecode.JUMP_IF_TRUE, 4, Bytecode.VOID,
+                        Bytecode.VOID, Bytecode.RETURN}),
+                Arguments.of("Call Without Prepare", new int[] {Bytecode.VOID, Bytecode.CALL, 0, Bytecode.RETURN}),
+                Arguments.of("Leave Without Enter", new int[] {Bytecode.VOID, Bytecode.LEAVE, Bytecode.RETURN}),
+                Arguments.of("Off The End", new int[] {Bytecode.VOID, Bytecode.POP, Bytecode.VOID})
+        );
+    }
+
+    @Test
+    void testLongString() {
+        // (do (define (f) "xx...") (f) (f)), where the string is too long for a class file
+        String value = String.join("", Collections.nCopies(70000, "x"));
+        Ast call = new Ast.Term("f", Arrays.asList());
+        Ast ast = new Ast.Term("do", Arrays.asList(
+                new Ast.Term("define", Arrays.asList(
+                        new Ast.Term("f", Arrays.asList()),
+                        new Ast.StringLiteral(value)
+                )),
+                call,
+                call
+        ));
+        Interpreter interpreter = new Interpreter(new PrintWriter(System.out), new Scope(null));
+        interpreter.threshold = 1;
+        Assertions.assertEquals(value, interpreter.execute(ast));
+        Assertions.assertEquals(0, interpreter.getPromotions());
+    }
+
     private static void test(Ast ast, Object expected, Map<String, Object> map) {
         Scope scope = new Scope(null);
         map.forEach(scope::define);
@@ -81,6 +708,23 @@ final class InterpreterTests {
         } else {
             Assertions.assertThrows(EvalException.class, () -> interpreter.eval(ast));
         }
+        Scope compiled = new Scope(null);
+        map.forEach(compiled::define);
+        Interpreter executor = new Interpreter(new PrintWriter(System.out), compiled);
+        if (expected != null) {
+            Assertions.assertEquals(expected, executor.execute(ast));
+        } else {
+            Assertions.assertThrows(EvalException.class, () -> executor.execute(ast));
+        }
+        Scope machine = new Scope(null);
+        map.forEach(machine::define);
+        Vm vm = new Vm(new Interpreter(new PrintWriter(System.out), machine));
+        Bytecode bytecode = Assertions.assertDoesNotThrow(() -> Bytecode.decode(Bytecode.compile(ast).encode()));
+        if (expected != null) {
+            Assertions.assertEquals(expected, vm.run(bytecode));
+        } else {
+            Assertions.assertThrows(EvalException.class, () -> vm.run(bytecode));
+        }
     }
 
 }
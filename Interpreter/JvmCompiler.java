@@ -0,0 +1,698 @@
+package plc.interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles the body of a user-defined function into JVM bytecode, which is
+ * loaded as a hidden class (see {@link MethodHandles.Lookup#defineHiddenClass})
+ * so it can be JIT compiled like any other Java code.
+ *
+ * Parameters are kept in the array of slots of the frame and read and
+ * written directly, calls to {@link Builtin}s and other {@link Closure}s are
+ * made with the values of the arguments, and do, while, set!, and and or are
+ * compiled into bytecode. Functions which aren't from the standard library
+ * are looked up through an {@link InlineCache}. Like the {@link Compiler}, a
+ * builtin or special form is only used if its name still has the same version
+ * as when the function was compiled. Anything else, including these when the name has changed,
+ * falls back to a node compiled by the {@link Compiler} which is executed in
+ * the current scope, so the result is always the same as the interpreter.
+ */
+final class JvmCompiler {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final Symbol SET = Symbol.of("set!");
+    private static final Symbol DO = Symbol.of("do");
+    private static final Symbol WHILE = Symbol.of("while");
+    private static final Symbol AND = Symbol.of("and");
+    private static final Symbol OR = Symbol.of("or");
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String BOOLEAN = "java/lang/Boolean";
+    private static final String SCOPE = "plc/interpreter/Scope";
+    private static final String SYMBOL = "plc/interpreter/Symbol";
+    private static final String BUILTIN = "plc/interpreter/Builtin";
+    private static final String CLOSURE = "plc/interpreter/Closure";
+    private static final String INLINE_CACHE = "plc/interpreter/InlineCache";
+    private static final String NODE = "plc/interpreter/Compiler$Node";
+    private static final String INTERPRETER = "plc/interpreter/Interpreter";
+    private static final String COMPILED = "plc/interpreter/JvmCompiler$Compiled";
+
+    private static final String RUN = "(L" + SCOPE + ";[L" + OBJECT + ";)L" + OBJECT + ";";
+    private static final String INIT = "(L" + INTERPRETER + ";Lplc/interpreter/Resolver$Layout;L" + SCOPE + ";[L" + OBJECT
+            + ";[L" + SYMBOL + ";[L" + SYMBOL + ";[I[L" + NODE + ";)V";
+    private static final MethodType CONSTRUCTOR = MethodType.methodType(void.class, Interpreter.class,
+            Resolver.Layout.class, Scope.class, Object[].class, Symbol[].class, Symbol[].class, int[].class,
+            Compiler.Node[].class);
+
+    /**
+     * The superclass of the generated classes, which holds the values used by
+     * the bytecode.
+     */
+    abstract static class Compiled extends Closure {
+
+        final Object[] constants;
+        final Symbol[] symbols;
+        final Symbol[] guards;
+        final int[] versions;
+        final Compiler.Node[] nodes;
+        Compiler.Tiered owner;
+
+        Compiled(Interpreter interpreter, Resolver.Layout layout, Scope parent, Object[] constants,
+                 Symbol[] symbols, Symbol[] guards, int[] versions, Compiler.Node[] nodes) {
+            super(interpreter, layout, parent);
+            this.constants = constants;
+            this.symbols = symbols;
+            this.guards = guards;
+            this.versions = versions;
+            this.nodes = nodes;
+        }
+
+        /**
+         * Returns true if the name of the guard hasn't been bound since the
+         * function was compiled.
+         */
+        final boolean valid(int guard) {
+            return parent.getVersion(guards[guard]) == versions[guard];
+        }
+
+        /**
+         * Called when a guard fails, before falling back to the node.
+         */
+        final void deoptimize(int guard) {
+            if (owner != null)
+                owner.deoptimize(this, guards[guard]);
+        }
+
+        static boolean test(Object value) {
+            return Interpreter.requireType(Boolean.class, value);
+        }
+
+        static Object tail(Closure closure, Object[] values) {
+            return new TailCall(closure, values);
+        }
+
+    }
+
+    private final Interpreter interpreter;
+    private final Compiler compiler;
+    private final Compiler.Tiered owner;
+    private final Resolver.Layout layout;
+    private final Scope parent;
+    private final List<Object> constants = new ArrayList<>();
+    private final List<Symbol> symbols = new ArrayList<>();
+    private final List<Symbol> guards = new ArrayList<>();
+    private final List<Integer> versions = new ArrayList<>();
+    private final List<Compiler.Node> nodes = new ArrayList<>();
+    private final Pool pool = new Pool();
+    private final Code code = new Code(3);
+
+    private JvmCompiler(Interpreter interpreter, Compiler compiler, Compiler.Tiered owner) {
+        this.interpreter = interpreter;
+        this.compiler = compiler;
+        this.owner = owner;
+        this.layout = owner.layout;
+        this.parent = owner.parent;
+    }
+
+    /**
+     * Compiles the resolved body of a function, returning null if it can't be
+     * defined or linked, in which case the function stays in the node tier.
+     */
+    static Compiled compile(Interpreter interpreter, Compiler compiler, Compiler.Tiered owner, Ast body) {
+        JvmCompiler jvm = new JvmCompiler(interpreter, compiler, owner);
+        jvm.expression(body, 1, true);
+        jvm.code.op(0xB0, -1);
+        if (jvm.code.length > Short.MAX_VALUE || jvm.code.maxLocals > 255 || jvm.pool.overflow)
+            return null;
+        int[] versions = new int[jvm.versions.size()];
+        for (int i = 0; i < versions.length; i++) {
+            versions[i] = jvm.versions.get(i);
+        }
+        MethodHandle constructor;
+        try {
+            MethodHandles.Lookup lookup = LOOKUP.defineHiddenClass(jvm.toByteArray(), true);
+            constructor = lookup.findConstructor(lookup.lookupClass(), CONSTRUCTOR);
+        } catch (IOException | ReflectiveOperationException | LinkageError | RuntimeException e) {
+            return null;
+        }
+        try {
+            Compiled compiled = (Compiled) constructor.invoke(interpreter, owner.layout, owner.parent, jvm.constants.toArray(),
+                    jvm.symbols.toArray(new Symbol[0]), jvm.guards.toArray(new Symbol[0]), versions,
+                    jvm.nodes.toArray(new Compiler.Node[0]));
+            compiled.owner = owner;
+            return compiled;
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Emits the code for an ast, which leaves its value on the stack. The
+     * current scope is in the local variable {@code scope}. In tail position,
+     * the value may be a {@link TailCall}.
+     */
+    private void expression(Ast ast, int scope, boolean tail) {
+        if (ast instanceof Ast.Term) {
+            term((Ast.Term) ast, scope, tail);
+        } else if (ast instanceof Ast.Identifier) {
+            Ast.Identifier identifier = (Ast.Identifier) ast;
+            if (identifier.getDepth() >= 0)
+                load(identifier.getDepth(), identifier.getSlot());
+            else
+                lookup(identifier.getSymbol(), scope);
+        } else if (ast instanceof Ast.NumberLiteral) {
+            constant(Numbers.valueOf(((Ast.NumberLiteral) ast).getValue()));
+        } else if (ast instanceof Ast.StringLiteral) {
+            code.ldc(pool.string(((Ast.StringLiteral) ast).getValue()));
+        } else {
+            throw new AssertionError(ast.getClass());
+        }
+    }
+
+    private void term(Ast.Term ast, int scope, boolean tail) {
+        if (ast.getDepth() >= 0) {
+            load(ast.getDepth(), ast.getSlot());
+            call(ast, scope, tail);
+            return;
+        }
+        Symbol name = ast.getSymbol();
+        List<Ast> args = ast.getArgs();
+        int version = parent.getVersion(name);
+        Object value = null;
+        if (!Compiler.shadowed(name, layout, parent) && !parent.isIterated(name)) {
+            try {
+                value = parent.lookup(name);
+            } catch (EvalException ignored) {
+            }
+        }
+        if (value == null || value != interpreter.getLibrary(name)) {
+            constant(new InlineCache(name));
+            code.type(0xC0, pool.type(INLINE_CACHE), 0);
+            code.aload(scope);
+            code.invoke(0xB6, INLINE_CACHE, "lookup", "(L" + SCOPE + ";)L" + OBJECT + ";", -1);
+            call(ast, scope, tail);
+        } else if (value instanceof Builtin
+                || name == SET && args.size() == 2 && args.get(0) instanceof Ast.Identifier
+                || name == DO || name == WHILE && args.size() == 2 || name == AND || name == OR) {
+            Label fallback = new Label();
+            Label end = new Label();
+            int guard = guard(name, version);
+            code.aload(0);
+            code.push(guard);
+            code.invoke(0xB6, COMPILED, "valid", "(I)Z", -1);
+            code.jump(0x99, fallback);
+            if (value instanceof Builtin)
+                builtin(ast, (Builtin) value, scope);
+            else
+                form(ast, scope, tail);
+            code.jump(0xA7, end);
+            code.mark(fallback, -1);
+            code.aload(0);
+            code.push(guard);
+            code.invoke(0xB6, COMPILED, "deoptimize", "(I)V", -2);
+            escape(ast, scope, tail);
+            code.mark(end, 0);
+        } else {
+            escape(ast, scope, tail);
+        }
+    }
+
+    /**
+     * Emits a call to the function on the stack, which is called directly if
+     * it is a closure and by a compiled node otherwise. In tail position, a
+     * call to a closure is left as a {@link TailCall}.
+     */
+    private void call(Ast.Term ast, int scope, boolean tail) {
+        Label fallback = new Label();
+        Label end = new Label();
+        code.op(0x59, 1);
+        code.type(0xC1, pool.type(CLOSURE), 0);
+        code.jump(0x99, fallback);
+        code.type(0xC0, pool.type(CLOSURE), 0);
+        array(ast.getArgs(), scope, -1);
+        if (tail)
+            code.invoke(0xB8, COMPILED, "tail", "(L" + CLOSURE + ";[L" + OBJECT + ";)L" + OBJECT + ";", -1);
+        else
+            code.invoke(0xB6, CLOSURE, "invoke", "([L" + OBJECT + ";)L" + OBJECT + ";", -1);
+        code.jump(0xA7, end);
+        code.mark(fallback, 0);
+        code.op(0x57, -1);
+        escape(ast, scope, tail);
+        code.mark(end, 0);
+    }
+
+    /**
+     * Emits a call to a builtin with the values of the arguments, which are
+     * checked as they are evaluated. Up to three arguments are passed directly
+     * instead of in an array.
+     */
+    private void builtin(Ast.Term ast, Builtin builtin, int scope) {
+        int local = code.allocate();
+        constant(builtin);
+        code.type(0xC0, pool.type(BUILTIN), 0);
+        code.op(0x59, 1);
+        code.astore(local);
+        code.push(ast.getArgs().size());
+        code.invoke(0xB6, BUILTIN, "check", "(I)V", -2);
+        code.aload(local);
+        List<Ast> args = ast.getArgs();
+        if (args.size() <= 3) {
+            StringBuilder descriptor = new StringBuilder("(");
+            for (Ast arg : args) {
+                code.aload(local);
+                expression(arg, scope, false);
+                code.invoke(0xB6, BUILTIN, "check", "(L" + OBJECT + ";)L" + OBJECT + ";", -1);
+                descriptor.append("L").append(OBJECT).append(";");
+            }
+            code.invoke(0xB6, BUILTIN, "invoke", descriptor + ")L" + OBJECT + ";", -args.size());
+        } else {
+            array(args, scope, local);
+            code.invoke(0xB6, BUILTIN, "invoke", "([L" + OBJECT + ";)L" + OBJECT + ";", -1);
+        }
+        code.release(local);
+    }
+
+    /**
+     * Emits an array of the values of the arguments, checking each with the
+     * builtin in the local variable if it isn't -1.
+     */
+    private void array(List<Ast> args, int scope, int builtin) {
+        code.push(args.size());
+        code.type(0xBD, pool.type(OBJECT), 0);
+        for (int i = 0; i < args.size(); i++) {
+            code.op(0x59, 1);
+            code.push(i);
+            if (builtin >= 0)
+                code.aload(builtin);
+            expression(args.get(i), scope, false);
+            if (builtin >= 0)
+                code.invoke(0xB6, BUILTIN, "check", "(L" + OBJECT + ";)L" + OBJECT + ";", -1);
+            code.op(0x53, -3);
+        }
+    }
+
+    private void form(Ast.Term ast, int scope, boolean tail) {
+        Symbol name = ast.getSymbol();
+        List<Ast> args = ast.getArgs();
+        if (name == SET) {
+            Ast.Identifier variable = (Ast.Identifier) args.get(0);
+            if (variable.getDepth() == 0) {
+                code.aload(2);
+                code.push(variable.getSlot());
+                expression(args.get(1), scope, false);
+                code.op(0x53, -3);
+            } else if (variable.getDepth() > 0) {
+                code.aload(1);
+                code.push(variable.getDepth());
+                code.push(variable.getSlot());
+                expression(args.get(1), scope, false);
+                code.invoke(0xB6, SCOPE, "store", "(IIL" + OBJECT + ";)V", -4);
+            } else {
+                code.aload(scope);
+                symbol(variable.getSymbol());
+                expression(args.get(1), scope, false);
+                code.invoke(0xB6, SCOPE, "set", "(L" + SYMBOL + ";L" + OBJECT + ";)V", -3);
+            }
+            code.field(0xB2, INTERPRETER, "VOID", "L" + OBJECT + ";", 1);
+        } else if (name == DO) {
+            int child = code.allocate();
+            code.type(0xBB, pool.type(SCOPE), 1);
+            code.op(0x59, 1);
+            code.aload(scope);
+            code.invoke(0xB7, SCOPE, "<init>", "(L" + SCOPE + ";)V", -2);
+            code.astore(child);
+            if (args.isEmpty())
+                code.field(0xB2, INTERPRETER, "VOID", "L" + OBJECT + ";", 1);
+            for (int i = 0; i < args.size(); i++) {
+                if (i > 0)
+                    code.op(0x57, -1);
+                expression(args.get(i), child, tail && i == args.size() - 1);
+            }
+            code.release(child);
+        } else if (name == WHILE) {
+            Label loop = new Label();
+            Label end = new Label();
+            code.mark(loop, 0);
+            expression(args.get(0), scope, false);
+            code.invoke(0xB8, COMPILED, "test", "(L" + OBJECT + ";)Z", 0);
+            code.jump(0x99, end);
+            expression(args.get(1), scope, false);
+            code.op(0x57, -1);
+            code.jump(0xA7, loop);
+            code.mark(end, 0);
+            code.field(0xB2, INTERPRETER, "VOID", "L" + OBJECT + ";", 1);
+        } else {
+            boolean and = name == AND;
+            Label exit = new Label();
+            Label end = new Label();
+            for (int i = 0; i < args.size() - 1; i++) {
+                expression(args.get(i), scope, false);
+                code.invoke(0xB8, COMPILED, "test", "(L" + OBJECT + ";)Z", 0);
+                code.jump(and ? 0x99 : 0x9A, exit);
+            }
+            if (args.isEmpty()) {
+                code.field(0xB2, BOOLEAN, and ? "TRUE" : "FALSE", "L" + BOOLEAN + ";", 1);
+            } else {
+                expression(args.get(args.size() - 1), scope, tail);
+                code.invoke(0xB8, "plc/interpreter/TailCall", "requireBoolean", "(L" + OBJECT + ";)L" + OBJECT + ";", 0);
+            }
+            code.jump(0xA7, end);
+            code.mark(exit, -1);
+            code.field(0xB2, BOOLEAN, and ? "FALSE" : "TRUE", "L" + BOOLEAN + ";", 1);
+            code.mark(end, 0);
+        }
+    }
+
+    /**
+     * Emits code which executes the ast as a compiled node.
+     */
+    private void escape(Ast ast, int scope, boolean tail) {
+        nodes.add(compiler.compile(ast, owner, parent, tail));
+        code.aload(0);
+        code.field(0xB4, COMPILED, "nodes", "[L" + NODE + ";", 0);
+        code.push(nodes.size() - 1);
+        code.op(0x32, -1);
+        code.aload(scope);
+        code.invoke(0xB6, NODE, "execute", "(L" + SCOPE + ";)L" + OBJECT + ";", -1);
+    }
+
+    private void load(int depth, int slot) {
+        if (depth == 0) {
+            code.aload(2);
+            code.push(slot);
+            code.op(0x32, -1);
+        } else {
+            code.aload(1);
+            code.push(depth);
+            code.push(slot);
+            code.invoke(0xB6, SCOPE, "load", "(II)L" + OBJECT + ";", -2);
+        }
+    }
+
+    private void lookup(Symbol name, int scope) {
+        code.aload(scope);
+        symbol(name);
+        code.invoke(0xB6, SCOPE, "lookup", "(L" + SYMBOL + ";)L" + OBJECT + ";", -1);
+    }
+
+    private void symbol(Symbol name) {
+        int index = symbols.indexOf(name);
+        if (index < 0) {
+            symbols.add(name);
+            index = symbols.size() - 1;
+        }
+        code.aload(0);
+        code.field(0xB4, COMPILED, "symbols", "[L" + SYMBOL + ";", 0);
+        code.push(index);
+        code.op(0x32, -1);
+    }
+
+    private void constant(Object value) {
+        constants.add(value);
+        code.aload(0);
+        code.field(0xB4, COMPILED, "constants", "[L" + OBJECT + ";", 0);
+        code.push(constants.size() - 1);
+        code.op(0x32, -1);
+    }
+
+    private int guard(Symbol name, int version) {
+        guards.add(name);
+        versions.add(version);
+        return guards.size() - 1;
+    }
+
+    /**
+     * Returns the class file, which has a constructor passing its arguments
+     * to {@link Compiled} and the method {@link Closure#run}.
+     */
+    private byte[] toByteArray() throws IOException {
+        Code init = new Code(9);
+        for (int i = 0; i < 9; i++) {
+            init.aload(i);
+        }
+        init.invoke(0xB7, COMPILED, "<init>", INIT, -9);
+        init.op(0xB1, 0);
+        int self = pool.type("plc/interpreter/Compiled");
+        int parent = pool.type(COMPILED);
+        byte[] constructor = method(0x0001, "<init>", INIT, init);
+        byte[] run = method(0x0000, "run", RUN, code);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(49);
+        out.writeShort(pool.count);
+        pool.bytes.writeTo(out);
+        out.writeShort(0x0030);
+        out.writeShort(self);
+        out.writeShort(parent);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(2);
+        out.write(constructor);
+        out.write(run);
+        out.writeShort(0);
+        return bytes.toByteArray();
+    }
+
+    private byte[] method(int access, String name, String descriptor, Code code) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(access);
+        out.writeShort(pool.utf8(name));
+        out.writeShort(pool.utf8(descriptor));
+        out.writeShort(1);
+        out.writeShort(pool.utf8("Code"));
+        out.writeInt(12 + code.length);
+        out.writeShort(code.maxStack);
+        out.writeShort(code.maxLocals);
+        out.writeInt(code.length);
+        out.write(code.bytes, 0, code.length);
+        out.writeShort(0);
+        out.writeShort(0);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The constant pool of the class file, where each constant is only
+     * written once.
+     */
+    private static final class Pool {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> indices = new HashMap<>();
+        private int count = 1;
+
+        /**
+         * Whether the pool can't be written, because a string is longer than
+         * 65535 bytes or there are too many constants.
+         */
+        private boolean overflow = false;
+
+        int utf8(String value) {
+            Integer index = indices.get("U" + value);
+            if (index != null)
+                return index;
+            if (length(value) > 0xFFFF) {
+                overflow = true;
+                return 0;
+            }
+            try {
+                out.writeByte(1);
+                out.writeUTF(value);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return add("U" + value);
+        }
+
+        int type(String name) {
+            return entry(7, "C" + name, utf8(name), -1);
+        }
+
+        int string(String value) {
+            return entry(8, "S" + value, utf8(value), -1);
+        }
+
+        int member(int tag, String owner, String name, String descriptor) {
+            int type = type(owner);
+            int pair = entry(12, "N" + name + " " + descriptor, utf8(name), utf8(descriptor));
+            return entry(tag, tag + owner + "." + name + " " + descriptor, type, pair);
+        }
+
+        private int entry(int tag, String key, int first, int second) {
+            Integer index = indices.get(key);
+            if (index != null)
+                return index;
+            try {
+                out.writeByte(tag);
+                out.writeShort(first);
+                if (second >= 0)
+                    out.writeShort(second);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return add(key);
+        }
+
+        private int add(String key) {
+            if (count == 0xFFFF)
+                overflow = true;
+            indices.put(key, count);
+            return count++;
+        }
+
+        /**
+         * Returns the length of a string in the modified UTF-8 of a class
+         * file.
+         */
+        private static int length(String value) {
+            int length = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+            }
+            return length;
+        }
+
+    }
+
+    private static final class Label {
+
+        private int position = -1;
+        private final List<Integer> jumps = new ArrayList<>();
+
+    }
+
+    /**
+     * The code of a method, which keeps track of the depth of the stack and
+     * the local variables in use.
+     */
+    private final class Code {
+
+        private byte[] bytes = new byte[256];
+        private int length = 0;
+        private int stack = 0;
+        private int maxStack = 0;
+        private int locals;
+        private int maxLocals;
+
+        Code(int locals) {
+            this.locals = locals;
+            this.maxLocals = locals;
+        }
+
+        int allocate() {
+            maxLocals = Math.max(maxLocals, ++locals);
+            return locals - 1;
+        }
+
+        void release(int local) {
+            locals = local;
+        }
+
+        void op(int opcode, int effect) {
+            write(opcode);
+            adjust(effect);
+        }
+
+        void aload(int local) {
+            if (local < 4) {
+                op(0x2A + local, 1);
+            } else {
+                op(0x19, 1);
+                write(local);
+            }
+        }
+
+        void astore(int local) {
+            if (local < 4) {
+                op(0x4B + local, -1);
+            } else {
+                op(0x3A, -1);
+                write(local);
+            }
+        }
+
+        void push(int value) {
+            if (value >= -1 && value <= 5) {
+                op(0x03 + value, 1);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(0x10, 1);
+                write(value);
+            } else {
+                op(0x11, 1);
+                write(value >> 8);
+                write(value);
+            }
+        }
+
+        void ldc(int index) {
+            op(0x13, 1);
+            write(index >> 8);
+            write(index);
+        }
+
+        void type(int opcode, int index, int effect) {
+            op(opcode, effect);
+            write(index >> 8);
+            write(index);
+        }
+
+        void field(int opcode, String owner, String name, String descriptor, int effect) {
+            type(opcode, pool.member(9, owner, name, descriptor), effect);
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor, int effect) {
+            type(opcode, pool.member(10, owner, name, descriptor), effect);
+        }
+
+        void jump(int opcode, Label label) {
+            int offset = label.position >= 0 ? label.position - length : 0;
+            label.jumps.add(length);
+            op(opcode, opcode == 0xA7 ? 0 : -1);
+            write(offset >> 8);
+            write(offset);
+        }
+
+        /**
+         * Marks the position of the label, where the depth of the stack is
+         * changed by the given amount since the last instruction.
+         */
+        void mark(Label label, int effect) {
+            label.position = length;
+            adjust(effect);
+            for (int jump : label.jumps) {
+                int offset = length - jump;
+                bytes[jump + 1] = (byte) (offset >> 8);
+                bytes[jump + 2] = (byte) offset;
+            }
+        }
+
+        private void adjust(int effect) {
+            stack += effect;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void write(int value) {
+            if (length == bytes.length)
+                bytes = java.util.Arrays.copyOf(bytes, bytes.length * 2);
+            bytes[length++] = (byte) value;
+        }
+
+    }
+
+}
@@ -0,0 +1,161 @@
+package plc.interpreter;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
+/**
+ * The arithmetic of Whisp numbers, which are exact decimals. To avoid creating
+ * a {@link BigDecimal} for every operation, each number has one of three
+ * representations:
+ *
+ * <ul>
+ *     <li>a {@link Long} for an integer which fits in a long,</li>
+ *     <li>a {@link BigInteger} for any other integer,</li>
+ *     <li>a {@link BigDecimal} for a number with digits after the point,
+ *     including zeros, such as {@code 1.50}.</li>
+ * </ul>
+ *
+ * Every operation returns the representation of its result, so two numbers
+ * are equal exactly when the BigDecimals they represent are (which includes
+ * the scale), and they print the same way. Operations on longs are done with
+ * longs unless they overflow, and small longs are cached.
+ */
+final class Numbers {
+
+    private static final int LOW = -1024;
+    private static final int HIGH = 1024;
+    private static final Long[] CACHE = new Long[HIGH - LOW];
+
+    static {
+        for (int i = 0; i < CACHE.length; i++) {
+            CACHE[i] = (long) (i + LOW);
+        }
+    }
+
+    private Numbers() {}
+
+    static boolean isNumber(Object value) {
+        return value instanceof Long || value instanceof BigDecimal || value instanceof BigInteger;
+    }
+
+    /**
+     * Checks that the value is a number, with the same message as when every
+     * number was a BigDecimal.
+     */
+    static Object require(Object value) {
+        if (!isNumber(value))
+            throw new EvalException("Expected " + value + " to have type BigDecimal.");
+        return value;
+    }
+
+    static Long valueOf(long value) {
+        if (value >= LOW && value < HIGH)
+            return CACHE[(int) value - LOW];
+        return value;
+    }
+
+    static Object valueOf(BigInteger value) {
+        return value.bitLength() < 64 ? valueOf(value.longValue()) : value;
+    }
+
+    static Object valueOf(BigDecimal value) {
+        if (value.scale() != 0)
+            return value;
+        if (value.precision() <= 18)
+            return valueOf(value.longValue());
+        return valueOf(value.toBigInteger());
+    }
+
+    static BigDecimal toBigDecimal(Object value) {
+        if (value instanceof Long)
+            return BigDecimal.valueOf((Long) value);
+        else if (value instanceof BigInteger)
+            return new BigDecimal((BigInteger) value);
+        return (BigDecimal) value;
+    }
+
+    private static BigInteger toBigInteger(Object value) {
+        return value instanceof Long ? BigInteger.valueOf((Long) value) : (BigInteger) value;
+    }
+
+    private static boolean isInteger(Object value) {
+        return value instanceof Long || value instanceof BigInteger;
+    }
+
+    static Object add(Object x, Object y) {
+        if (x instanceof Long && y instanceof Long) {
+            long a = (Long) x;
+            long b = (Long) y;
+            long result = a + b;
+            if (((a ^ result) & (b ^ result)) >= 0)
+                return valueOf(result);
+        }
+        if (isInteger(x) && isInteger(y))
+            return valueOf(toBigInteger(x).add(toBigInteger(y)));
+        return valueOf(toBigDecimal(x).add(toBigDecimal(y)));
+    }
+
+    static Object subtract(Object x, Object y) {
+        if (x instanceof Long && y instanceof Long) {
+            long a = (Long) x;
+            long b = (Long) y;
+            long result = a - b;
+            if (((a ^ b) & (a ^ result)) >= 0)
+                return valueOf(result);
+        }
+        if (isInteger(x) && isInteger(y))
+            return valueOf(toBigInteger(x).subtract(toBigInteger(y)));
+        return valueOf(toBigDecimal(x).subtract(toBigDecimal(y)));
+    }
+
+    static Object multiply(Object x, Object y) {
+        if (x instanceof Long && y instanceof Long) {
+            long a = (Long) x;
+            long b = (Long) y;
+            long high = Math.multiplyHigh(a, b);
+            long result = a * b;
+            if (high == 0 && result >= 0 || high == -1 && result < 0)
+                return valueOf(result);
+        }
+        if (isInteger(x) && isInteger(y))
+            return valueOf(toBigInteger(x).multiply(toBigInteger(y)));
+        return valueOf(toBigDecimal(x).multiply(toBigDecimal(y)));
+    }
+
+    static Object negate(Object x) {
+        if (x instanceof Long && (Long) x != Long.MIN_VALUE)
+            return valueOf(-(Long) x);
+        if (isInteger(x))
+            return valueOf(toBigInteger(x).negate());
+        return toBigDecimal(x).negate();
+    }
+
+    /**
+     * Divides x by y, rounding half to even at the scale of x like
+     * {@link BigDecimal#divide(BigDecimal, RoundingMode)}, which throws an
+     * ArithmeticException if y is zero.
+     */
+    static Object divide(Object x, Object y) {
+        if (x instanceof Long && y instanceof Long) {
+            long a = (Long) x;
+            long b = (Long) y;
+            if (b != 0 && b != Long.MIN_VALUE && !(a == Long.MIN_VALUE && b == -1)) {
+                long quotient = a / b;
+                long remainder = Math.abs(a % b);
+                long rest = Math.abs(b) - remainder;
+                if (remainder > rest || remainder == rest && (quotient & 1) != 0)
+                    quotient += (a < 0) != (b < 0) ? -1 : 1;
+                return valueOf(quotient);
+            }
+        }
+        return valueOf(toBigDecimal(x).divide(toBigDecimal(y), RoundingMode.HALF_EVEN));
+    }
+
+    static int compare(Object x, Object y) {
+        if (x instanceof Long && y instanceof Long)
+            return Long.compare((Long) x, (Long) y);
+        return toBigDecimal(x).compareTo(toBigDecimal(y));
+    }
+
+}
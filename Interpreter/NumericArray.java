@@ -0,0 +1,420 @@
+package plc.interpreter;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An array of numbers stored unboxed, which is what array returns. If every
+ * element is an integer that fits in a long they are kept in a long[], and
+ * otherwise they are converted to doubles and kept in a double[], which rounds
+ * decimals like any double. An integer is only converted if the double is
+ * exact, which is every integer up to 2^53 in magnitude, and is an error
+ * otherwise, both when the array is created and when a long array is combined
+ * with a double array.
+ *
+ * The bulk operations (array-add, array-mul, array-dot, array-sum, array-min
+ * and array-max) are simple loops over the primitive arrays, which the JIT
+ * unrolls and vectorizes, and only box the result. Operations on longs are
+ * checked for overflow, where array-sum and array-dot fall back to
+ * BigIntegers like {@link Numbers}, and the elementwise operations throw an
+ * exception since their result can't be stored. An array of doubles is summed
+ * with several accumulators, so the result may round differently than adding
+ * the elements in order.
+ *
+ * Arrays are sequences, so the other sequence operations work on them by
+ * boxing each element as it is needed.
+ */
+abstract class NumericArray implements Sequence {
+
+    private NumericArray() {}
+
+    private static final class Longs extends NumericArray {
+
+        private final long[] values;
+
+        Longs(long[] values) {
+            this.values = values;
+        }
+
+        @Override
+        int size() {
+            return values.length;
+        }
+
+        @Override
+        Object get(int index) {
+            return Numbers.valueOf(values[index]);
+        }
+
+        @Override
+        double[] doubles() {
+            double[] doubles = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+                doubles[i] = exact(values[i]);
+            }
+            return doubles;
+        }
+
+        @Override
+        NumericArray slice(int from, int to) {
+            return new Longs(Arrays.copyOfRange(values, from, to));
+        }
+
+    }
+
+    private static final class Doubles extends NumericArray {
+
+        private final double[] values;
+
+        Doubles(double[] values) {
+            this.values = values;
+        }
+
+        @Override
+        int size() {
+            return values.length;
+        }
+
+        @Override
+        Object get(int index) {
+            return number(values[index]);
+        }
+
+        @Override
+        double[] doubles() {
+            return values;
+        }
+
+        @Override
+        NumericArray slice(int from, int to) {
+            return new Doubles(Arrays.copyOfRange(values, from, to));
+        }
+
+    }
+
+    abstract int size();
+
+    /**
+     * Returns the element at the index as a Whisp number.
+     */
+    abstract Object get(int index);
+
+    /**
+     * Returns the elements as doubles, which must not be modified.
+     */
+    abstract double[] doubles();
+
+    abstract NumericArray slice(int from, int to);
+
+    /**
+     * Creates an array from the elements of a sequence, which must be numbers.
+     */
+    static NumericArray of(Object sequence) {
+        if (sequence instanceof NumericArray)
+            return (NumericArray) sequence;
+        long[] longs = new long[16];
+        int size = 0;
+        Iterator<Object> iterator = Sequence.require(sequence).traverse();
+        while (iterator.hasNext()) {
+            Object value = Numbers.require(iterator.next());
+            if (!(value instanceof Long)) {
+                double[] doubles = new double[longs.length];
+                for (int i = 0; i < size; i++) {
+                    doubles[i] = exact(longs[i]);
+                }
+                return doubles(doubles, size, value, iterator);
+            }
+            if (size == longs.length)
+                longs = Arrays.copyOf(longs, 2 * size);
+            longs[size++] = (Long) value;
+        }
+        return new Longs(Arrays.copyOf(longs, size));
+    }
+
+    private static NumericArray doubles(double[] doubles, int size, Object value, Iterator<Object> iterator) {
+        while (true) {
+            double next;
+            if (value instanceof Long) {
+                next = exact((Long) value);
+            } else {
+                BigDecimal decimal = Numbers.toBigDecimal(value);
+                next = decimal.doubleValue();
+                if (Double.isInfinite(next))
+                    throw new EvalException("Error: Arguments are out of range");
+                if (value instanceof BigInteger && new BigDecimal(next).compareTo(decimal) != 0)
+                    throw new EvalException("Error: Integer can't be stored exactly as a double");
+            }
+            if (size == doubles.length)
+                doubles = Arrays.copyOf(doubles, 2 * size);
+            doubles[size++] = next;
+            if (!iterator.hasNext())
+                return new Doubles(Arrays.copyOf(doubles, size));
+            value = Numbers.require(iterator.next());
+        }
+    }
+
+    /**
+     * Returns the integer as a double, checking that it is exact.
+     */
+    private static double exact(long value) {
+        double result = value;
+        if (value == Long.MAX_VALUE || (long) result != value)
+            throw new EvalException("Error: Integer can't be stored exactly as a double");
+        return result;
+    }
+
+    static NumericArray require(Object value) {
+        if (!(value instanceof NumericArray))
+            throw new EvalException("Expected " + value + " to have type NumericArray.");
+        return (NumericArray) value;
+    }
+
+    /**
+     * Returns the Whisp number for a double, which must be finite. Like 2.0,
+     * a large double keeps one digit after the point instead of an exponent.
+     */
+    private static Object number(double value) {
+        if (!Double.isFinite(value))
+            throw new EvalException("Error: Result is out of range");
+        BigDecimal decimal = BigDecimal.valueOf(value);
+        return Numbers.valueOf(decimal.scale() < 1 ? decimal.setScale(1) : decimal);
+    }
+
+    /**
+     * Checks that the arrays have the same size, returning it.
+     */
+    private static int size(NumericArray x, NumericArray y) {
+        if (x.size() != y.size())
+            throw new EvalException("Error: Arrays have different sizes");
+        return x.size();
+    }
+
+    static NumericArray add(Object first, Object second) {
+        NumericArray x = require(first);
+        NumericArray y = require(second);
+        int size = size(x, y);
+        if (x instanceof Longs && y instanceof Longs) {
+            long[] a = ((Longs) x).values;
+            long[] b = ((Longs) y).values;
+            long[] result = new long[size];
+            long overflow = 0;
+            for (int i = 0; i < size; i++) {
+                long sum = a[i] + b[i];
+                overflow |= (a[i] ^ sum) & (b[i] ^ sum);
+                result[i] = sum;
+            }
+            if (overflow < 0)
+                throw new EvalException("Error: Result is out of range");
+            return new Longs(result);
+        }
+        double[] a = x.doubles();
+        double[] b = y.doubles();
+        double[] result = new double[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = a[i] + b[i];
+        }
+        return new Doubles(result);
+    }
+
+    static NumericArray multiply(Object first, Object second) {
+        NumericArray x = require(first);
+        NumericArray y = require(second);
+        int size = size(x, y);
+        if (x instanceof Longs && y instanceof Longs) {
+            long[] a = ((Longs) x).values;
+            long[] b = ((Longs) y).values;
+            long[] result = new long[size];
+            try {
+                for (int i = 0; i < size; i++) {
+                    result[i] = Math.multiplyExact(a[i], b[i]);
+                }
+            } catch (ArithmeticException e) {
+                throw new EvalException("Error: Result is out of range");
+            }
+            return new Longs(result);
+        }
+        double[] a = x.doubles();
+        double[] b = y.doubles();
+        double[] result = new double[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = a[i] * b[i];
+        }
+        return new Doubles(result);
+    }
+
+    static Object dot(Object first, Object second) {
+        NumericArray x = require(first);
+        NumericArray y = require(second);
+        int size = size(x, y);
+        if (x instanceof Longs && y instanceof Longs) {
+            long[] a = ((Longs) x).values;
+            long[] b = ((Longs) y).values;
+            try {
+                long result = 0;
+                for (int i = 0; i < size; i++) {
+                    result = Math.addExact(result, Math.multiplyExact(a[i], b[i]));
+                }
+                return Numbers.valueOf(result);
+            } catch (ArithmeticException e) {
+                BigInteger result = BigInteger.ZERO;
+                for (int i = 0; i < size; i++) {
+                    result = result.add(BigInteger.valueOf(a[i]).multiply(BigInteger.valueOf(b[i])));
+                }
+                return Numbers.valueOf(result);
+            }
+        }
+        double[] a = x.doubles();
+        double[] b = y.doubles();
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < size; i += 4) {
+            s0 += a[i] * b[i];
+            s1 += a[i + 1] * b[i + 1];
+            s2 += a[i + 2] * b[i + 2];
+            s3 += a[i + 3] * b[i + 3];
+        }
+        for (; i < size; i++) {
+            s0 += a[i] * b[i];
+        }
+        return number((s0 + s1) + (s2 + s3));
+    }
+
+    static Object sum(Object array) {
+        NumericArray x = require(array);
+        if (x instanceof Longs) {
+            long[] a = ((Longs) x).values;
+            long result = 0;
+            long overflow = 0;
+            for (long value : a) {
+                long sum = result + value;
+                overflow |= (result ^ sum) & (value ^ sum);
+                result = sum;
+            }
+            if (overflow >= 0)
+                return Numbers.valueOf(result);
+            BigInteger exact = BigInteger.ZERO;
+            for (long value : a) {
+                exact = exact.add(BigInteger.valueOf(value));
+            }
+            return Numbers.valueOf(exact);
+        }
+        double[] a = x.doubles();
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < a.length; i += 4) {
+            s0 += a[i];
+            s1 += a[i + 1];
+            s2 += a[i + 2];
+            s3 += a[i + 3];
+        }
+        for (; i < a.length; i++) {
+            s0 += a[i];
+        }
+        return number((s0 + s1) + (s2 + s3));
+    }
+
+    static Object min(Object array) {
+        NumericArray x = require(array);
+        if (x.size() == 0)
+            throw new EvalException("Error: Array is empty");
+        if (x instanceof Longs) {
+            long[] a = ((Longs) x).values;
+            long result = a[0];
+            for (long value : a) {
+                result = Math.min(result, value);
+            }
+            return Numbers.valueOf(result);
+        }
+        double[] a = x.doubles();
+        double result = a[0];
+        for (double value : a) {
+            result = Math.min(result, value);
+        }
+        return number(result);
+    }
+
+    static Object max(Object array) {
+        NumericArray x = require(array);
+        if (x.size() == 0)
+            throw new EvalException("Error: Array is empty");
+        if (x instanceof Longs) {
+            long[] a = ((Longs) x).values;
+            long result = a[0];
+            for (long value : a) {
+                result = Math.max(result, value);
+            }
+            return Numbers.valueOf(result);
+        }
+        double[] a = x.doubles();
+        double result = a[0];
+        for (double value : a) {
+            result = Math.max(result, value);
+        }
+        return number(result);
+    }
+
+    /**
+     * Returns a copy of the elements from the start index up to but not
+     * including the end index.
+     */
+    static NumericArray slice(Object array, Object start, Object end) {
+        NumericArray x = require(array);
+        long from = Sequences.index(start);
+        long to = Sequences.index(end);
+        if (from < 0 || from > to || to > x.size())
+            throw new EvalException("Error: Index out of bounds");
+        return x.slice((int) from, (int) to);
+    }
+
+    @Override
+    public Object length() {
+        return Numbers.valueOf(size());
+    }
+
+    @Override
+    public Object nth(long index) {
+        if (index < 0 || index >= size())
+            throw new EvalException("Error: Index out of bounds");
+        return get((int) index);
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return new Iterator<Object>() {
+
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < size();
+            }
+
+            @Override
+            public Object next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return get(index++);
+            }
+
+        };
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return Sequence.equals(this, obj);
+    }
+
+    @Override
+    public int hashCode() {
+        return Sequence.hashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return Sequence.toString(this);
+    }
+
+}
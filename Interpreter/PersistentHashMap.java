@@ -0,0 +1,350 @@
+package plc.interpreter;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * An immutable map from keys to values, which is what hash-map returns. The
+ * entries are stored in a hash array mapped trie: each node uses the next 5
+ * bits of the hash of a key to pick one of up to 32 children, and only stores
+ * the children which are there, found through a bitmap. Keys whose hashes are
+ * the same are kept together in a collision node.
+ *
+ * Looking up a key follows one path, which is at most 7 levels deep, and a map
+ * with an entry added, changed or removed copies only the nodes along that
+ * path, sharing the rest with the original. Keys are compared with
+ * {@link Object#equals(Object)}, like equals?, and maps print and compare like
+ * any other {@link Map}.
+ */
+final class PersistentHashMap extends AbstractMap<Object, Object> {
+
+    static final PersistentHashMap EMPTY = new PersistentHashMap(0, BitmapNode.EMPTY);
+
+    /**
+     * A node of the trie, whose array holds pairs of a key and its value, or
+     * of null and a child node.
+     */
+    private interface Node {
+
+        Object[] array();
+
+        Object find(int shift, int hash, Object key, Object missing);
+
+        /**
+         * Returns the node with the key mapped to the value, setting added[0]
+         * if the key wasn't there before.
+         */
+        Node assoc(int shift, int hash, Object key, Object value, boolean[] added);
+
+        /**
+         * Returns the node without the key, or null if it would be empty.
+         */
+        Node without(int shift, int hash, Object key);
+
+    }
+
+    private static final class BitmapNode implements Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        private final int bitmap;
+        private final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        @Override
+        public Object[] array() {
+            return array;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        public Object find(int shift, int hash, Object key, Object missing) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0)
+                return missing;
+            int index = index(bit);
+            Object k = array[2 * index];
+            Object v = array[2 * index + 1];
+            if (k == null)
+                return ((Node) v).find(shift + 5, hash, key, missing);
+            return key.equals(k) ? v : missing;
+        }
+
+        @Override
+        public Node assoc(int shift, int hash, Object key, Object value, boolean[] added) {
+            int bit = bit(hash, shift);
+            int index = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] copy = new Object[array.length + 2];
+                System.arraycopy(array, 0, copy, 0, 2 * index);
+                copy[2 * index] = key;
+                copy[2 * index + 1] = value;
+                System.arraycopy(array, 2 * index, copy, 2 * index + 2, array.length - 2 * index);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, copy);
+            }
+            Object k = array[2 * index];
+            Object v = array[2 * index + 1];
+            Object[] copy = array.clone();
+            if (k == null) {
+                Node child = ((Node) v).assoc(shift + 5, hash, key, value, added);
+                if (child == v)
+                    return this;
+                copy[2 * index + 1] = child;
+            } else if (key.equals(k)) {
+                if (value == v)
+                    return this;
+                copy[2 * index + 1] = value;
+            } else {
+                added[0] = true;
+                copy[2 * index] = null;
+                copy[2 * index + 1] = node(shift + 5, k, v, hash, key, value);
+            }
+            return new BitmapNode(bitmap, copy);
+        }
+
+        @Override
+        public Node without(int shift, int hash, Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0)
+                return this;
+            int index = index(bit);
+            Object k = array[2 * index];
+            Object v = array[2 * index + 1];
+            if (k == null) {
+                Node child = ((Node) v).without(shift + 5, hash, key);
+                if (child == v)
+                    return this;
+                if (child != null) {
+                    Object[] copy = array.clone();
+                    copy[2 * index + 1] = child;
+                    return new BitmapNode(bitmap, copy);
+                }
+            } else if (!key.equals(k)) {
+                return this;
+            }
+            if (bitmap == bit)
+                return null;
+            Object[] copy = new Object[array.length - 2];
+            System.arraycopy(array, 0, copy, 0, 2 * index);
+            System.arraycopy(array, 2 * index + 2, copy, 2 * index, copy.length - 2 * index);
+            return new BitmapNode(bitmap ^ bit, copy);
+        }
+
+    }
+
+    private static final class CollisionNode implements Node {
+
+        private final int hash;
+        private final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        @Override
+        public Object[] array() {
+            return array;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i]))
+                    return i;
+            }
+            return -1;
+        }
+
+        @Override
+        public Object find(int shift, int hash, Object key, Object missing) {
+            int index = hash == this.hash ? indexOf(key) : -1;
+            return index >= 0 ? array[index + 1] : missing;
+        }
+
+        @Override
+        public Node assoc(int shift, int hash, Object key, Object value, boolean[] added) {
+            if (hash != this.hash)
+                return new BitmapNode(bit(this.hash, shift), new Object[] {null, this}).assoc(shift, hash, key, value, added);
+            int index = indexOf(key);
+            if (index >= 0) {
+                if (array[index + 1] == value)
+                    return this;
+                Object[] copy = array.clone();
+                copy[index + 1] = value;
+                return new CollisionNode(hash, copy);
+            }
+            Object[] copy = new Object[array.length + 2];
+            System.arraycopy(array, 0, copy, 0, array.length);
+            copy[array.length] = key;
+            copy[array.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        public Node without(int shift, int hash, Object key) {
+            int index = hash == this.hash ? indexOf(key) : -1;
+            if (index < 0)
+                return this;
+            if (array.length == 2)
+                return null;
+            Object[] copy = new Object[array.length - 2];
+            System.arraycopy(array, 0, copy, 0, index);
+            System.arraycopy(array, index + 2, copy, index, copy.length - index);
+            return new CollisionNode(hash, copy);
+        }
+
+    }
+
+    private final int size;
+    private final Node root;
+
+    private PersistentHashMap(int size, Node root) {
+        this.size = size;
+        this.root = root;
+    }
+
+    /**
+     * Creates a map from alternating keys and values, where later values
+     * replace earlier ones with the same key.
+     */
+    static PersistentHashMap of(Object[] values) {
+        if (values.length % 2 != 0)
+            throw new EvalException("Error: Expected pairs of keys and values");
+        PersistentHashMap map = EMPTY;
+        for (int i = 0; i < values.length; i += 2) {
+            map = map.assoc(values[i], values[i + 1]);
+        }
+        return map;
+    }
+
+    private static int hash(Object key) {
+        int hash = key.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & 31);
+    }
+
+    /**
+     * Returns a node containing both entries, whose keys are different.
+     */
+    private static Node node(int shift, Object key1, Object value1, int hash2, Object key2, Object value2) {
+        int hash1 = hash(key1);
+        if (hash1 == hash2)
+            return new CollisionNode(hash1, new Object[] {key1, value1, key2, value2});
+        boolean[] added = new boolean[1];
+        return BitmapNode.EMPTY.assoc(shift, hash1, key1, value1, added).assoc(shift, hash2, key2, value2, added);
+    }
+
+    PersistentHashMap assoc(Object key, Object value) {
+        boolean[] added = new boolean[1];
+        Node node = root.assoc(0, hash(key), key, value, added);
+        return node == root ? this : new PersistentHashMap(added[0] ? size + 1 : size, node);
+    }
+
+    PersistentHashMap dissoc(Object key) {
+        Node node = root.without(0, hash(key), key);
+        if (node == root)
+            return this;
+        return node != null ? new PersistentHashMap(size - 1, node) : EMPTY;
+    }
+
+    @Override
+    public Object getOrDefault(Object key, Object missing) {
+        return key == null ? missing : root.find(0, hash(key), key, missing);
+    }
+
+    @Override
+    public Object get(Object key) {
+        return getOrDefault(key, null);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return getOrDefault(key, this) != this;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<Object, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<Object, Object>>() {
+
+            @Override
+            public Iterator<Map.Entry<Object, Object>> iterator() {
+                return new Entries(root);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+        };
+    }
+
+    /**
+     * Iterates over the entries in the trie depth first, keeping the arrays
+     * of the nodes on the path to the current one.
+     */
+    private static final class Entries implements Iterator<Map.Entry<Object, Object>> {
+
+        private final Object[][] arrays = new Object[9][];
+        private final int[] indices = new int[9];
+        private int depth = 0;
+        private Map.Entry<Object, Object> next = null;
+
+        Entries(Node root) {
+            arrays[0] = root.array();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && depth >= 0) {
+                Object[] array = arrays[depth];
+                int index = indices[depth];
+                if (index >= array.length) {
+                    depth--;
+                } else if (array[index] == null) {
+                    indices[depth] = index + 2;
+                    depth++;
+                    arrays[depth] = ((Node) array[index + 1]).array();
+                    indices[depth] = 0;
+                } else {
+                    indices[depth] = index + 2;
+                    next = new SimpleImmutableEntry<>(array[index], array[index + 1]);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<Object, Object> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Map.Entry<Object, Object> entry = next;
+            next = null;
+            return entry;
+        }
+
+    }
+
+}
@@ -0,0 +1,202 @@
+package plc.interpreter;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * An immutable vector, which is what vector returns. The elements are stored
+ * in a tree where each node has up to 32 children, with the last (up to) 32
+ * elements in a separate tail. Getting an element follows one path from the
+ * root, which is at most a few levels deep, and a vector with an element
+ * changed or added copies only the nodes along that path, sharing the rest
+ * with the original.
+ *
+ * Like a {@link WhispList}, a vector prints and compares like a
+ * {@link java.util.List}, and is equal to any {@link Sequence} with the same
+ * elements.
+ */
+final class PersistentVector extends AbstractList<Object> implements RandomAccess, Sequence {
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    static final PersistentVector EMPTY = new PersistentVector(0, BITS, new Object[WIDTH], new Object[0]);
+
+    private final int count;
+    private final int shift;
+    private final Object[] root;
+    private final Object[] tail;
+
+    private PersistentVector(int count, int shift, Object[] root, Object[] tail) {
+        this.count = count;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    static PersistentVector of(Object[] values) {
+        PersistentVector vector = EMPTY;
+        for (Object value : values) {
+            vector = vector.conj(value);
+        }
+        return vector;
+    }
+
+    /**
+     * Returns the index of the first element in the tail.
+     */
+    private int tailOffset() {
+        return count < WIDTH ? 0 : ((count - 1) >>> BITS) << BITS;
+    }
+
+    /**
+     * Returns the leaf containing the element at the index.
+     */
+    private Object[] leaf(int index) {
+        if (index >= tailOffset())
+            return tail;
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(index >>> level) & MASK];
+        }
+        return node;
+    }
+
+    @Override
+    public Object get(int index) {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        return leaf(index)[index & MASK];
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns a vector with the value added to the end.
+     */
+    PersistentVector conj(Object value) {
+        if (count - tailOffset() < WIDTH) {
+            Object[] added = Arrays.copyOf(tail, tail.length + 1);
+            added[tail.length] = value;
+            return new PersistentVector(count + 1, shift, root, added);
+        }
+        if ((count >>> BITS) > (1 << shift)) {
+            Object[] added = new Object[WIDTH];
+            added[0] = root;
+            added[1] = path(shift, tail);
+            return new PersistentVector(count + 1, shift + BITS, added, new Object[] {value});
+        }
+        return new PersistentVector(count + 1, shift, push(shift, root, tail), new Object[] {value});
+    }
+
+    /**
+     * Returns a copy of the node with the full tail added as the next leaf.
+     */
+    private Object[] push(int level, Object[] node, Object[] leaf) {
+        int index = ((count - 1) >>> level) & MASK;
+        Object[] copy = node.clone();
+        if (level == BITS) {
+            copy[index] = leaf;
+        } else {
+            Object[] child = (Object[]) node[index];
+            copy[index] = child != null ? push(level - BITS, child, leaf) : path(level - BITS, leaf);
+        }
+        return copy;
+    }
+
+    /**
+     * Returns a new branch down to the leaf.
+     */
+    private static Object[] path(int level, Object[] leaf) {
+        if (level == 0)
+            return leaf;
+        Object[] node = new Object[WIDTH];
+        node[0] = path(level - BITS, leaf);
+        return node;
+    }
+
+    /**
+     * Returns a vector with the element at the index replaced by the value,
+     * or added to the end if the index is the size of the vector.
+     */
+    PersistentVector assoc(int index, Object value) {
+        if (index == count)
+            return conj(value);
+        if (index < 0 || index > count)
+            throw new EvalException("Error: Index out of bounds");
+        if (index >= tailOffset()) {
+            Object[] copy = tail.clone();
+            copy[index & MASK] = value;
+            return new PersistentVector(count, shift, root, copy);
+        }
+        return new PersistentVector(count, shift, assoc(shift, root, index, value), tail);
+    }
+
+    private static Object[] assoc(int level, Object[] node, int index, Object value) {
+        Object[] copy = node.clone();
+        if (level == 0) {
+            copy[index & MASK] = value;
+        } else {
+            int child = (index >>> level) & MASK;
+            copy[child] = assoc(level - BITS, (Object[]) node[child], index, value);
+        }
+        return copy;
+    }
+
+    @Override
+    public Object length() {
+        return Numbers.valueOf(count);
+    }
+
+    @Override
+    public Object nth(long index) {
+        if (index < 0 || index >= count)
+            throw new EvalException("Error: Index out of bounds");
+        return get((int) index);
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return new Iterator<Object>() {
+
+            private int index = 0;
+            private Object[] leaf = count > 0 ? leaf(0) : null;
+
+            @Override
+            public boolean hasNext() {
+                return index < count;
+            }
+
+            @Override
+            public Object next() {
+                if (index >= count)
+                    throw new NoSuchElementException();
+                if (index > 0 && (index & MASK) == 0)
+                    leaf = leaf(index);
+                return leaf[index++ & MASK];
+            }
+
+        };
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof Sequence && !(obj instanceof List))
+            return Sequence.equals(this, obj);
+        return super.equals(obj);
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode();
+    }
+
+}
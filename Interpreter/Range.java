@@ -0,0 +1,153 @@
+package plc.interpreter;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * The integers from a start up to but not including an end, counting by a
+ * step, which is what range returns. The elements are computed as they are
+ * iterated over, so a range takes the same memory however long it is, and a
+ * for over one never has all of the elements at once.
+ */
+final class Range implements Sequence {
+
+    private static final int PRINTED = 1000;
+
+    private final long start;
+    private final long end;
+    private final long step;
+
+    private Range(long start, long end, long step) {
+        this.start = start;
+        this.end = end;
+        this.step = step;
+    }
+
+    /**
+     * Creates the range for the arguments of range, which must be integers
+     * that fit in a long. The step can't be zero, and the start can't be past
+     * the end in the direction of the step.
+     */
+    static Range of(Object start, Object end, Object step) {
+        BigDecimal first = Numbers.toBigDecimal(start);
+        BigDecimal last = Numbers.toBigDecimal(end);
+        BigDecimal by = Numbers.toBigDecimal(step);
+        if (by.stripTrailingZeros().scale() > 0)
+            throw new EvalException("Error: Arguments are not integers");
+        else if (by.signum() == 0)
+            throw new EvalException("Error: Step cannot be zero");
+        if (first.compareTo(last) == 0)
+            return new Range(0, 0, 1);
+        else if (first.stripTrailingZeros().scale() > 0 || last.stripTrailingZeros().scale() > 0)
+            throw new EvalException("Error: Arguments are not integers");
+        else if (first.compareTo(last) == by.signum())
+            throw new EvalException(by.signum() > 0 ? "Error: First argument > Second argument" : "Error: First argument < Second argument");
+        try {
+            return new Range(first.longValueExact(), last.longValueExact(), by.longValueExact());
+        } catch (ArithmeticException e) {
+            throw new EvalException("Error: Arguments are out of range");
+        }
+    }
+
+    /**
+     * Returns the number of elements, which may not fit in a long.
+     */
+    private BigInteger count() {
+        BigInteger distance = BigInteger.valueOf(end).subtract(BigInteger.valueOf(start));
+        BigInteger by = BigInteger.valueOf(step);
+        if (distance.signum() != by.signum())
+            return BigInteger.ZERO;
+        return distance.add(by).subtract(BigInteger.valueOf(by.signum())).divide(by);
+    }
+
+    @Override
+    public Object length() {
+        return Numbers.valueOf(count());
+    }
+
+    @Override
+    public Object nth(long index) {
+        if (index < 0 || BigInteger.valueOf(index).compareTo(count()) >= 0)
+            throw new EvalException("Error: Index out of bounds");
+        return Numbers.valueOf(start + index * step);
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return new Iterator<Object>() {
+
+            private long next = start;
+            private boolean done = false;
+
+            @Override
+            public boolean hasNext() {
+                return !done && (step > 0 ? next < end : next > end);
+            }
+
+            @Override
+            public Object next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                long value = next;
+                next += step;
+                if (step > 0 ? next < value : next > value)
+                    done = true;
+                return Numbers.valueOf(value);
+            }
+
+        };
+    }
+
+    /**
+     * Compares another range by its bounds instead of its elements, so
+     * comparing long ranges doesn't count through them.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Range))
+            return Sequence.equals(this, obj);
+        Range other = (Range) obj;
+        BigInteger count = count();
+        if (!count.equals(other.count()))
+            return false;
+        return count.signum() == 0 || start == other.start && (count.equals(BigInteger.ONE) || step == other.step);
+    }
+
+    /**
+     * Returns the same hash code as a list of the elements, without boxing
+     * them. A range with more elements than any list can have is hashed by
+     * its bounds instead.
+     */
+    @Override
+    public int hashCode() {
+        BigInteger count = count();
+        if (count.bitLength() >= Integer.SIZE)
+            return Objects.hash(start, step, count);
+        int hash = 1;
+        long value = start;
+        for (int i = count.intValue(); i > 0; i--) {
+            hash = 31 * hash + Long.hashCode(value);
+            value += step;
+        }
+        return hash;
+    }
+
+    /**
+     * Prints like a list, leaving out the elements after the first
+     * {@link #PRINTED}.
+     */
+    @Override
+    public String toString() {
+        if (count().compareTo(BigInteger.valueOf(PRINTED)) <= 0)
+            return Sequence.toString(this);
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < PRINTED; i++) {
+            builder.append(start + i * step).append(", ");
+        }
+        return builder.append("...]").toString();
+    }
+
+}
@@ -0,0 +1,184 @@
+package plc.interpreter;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Resolves references to the parameters of user-defined functions into
+ * lexical addresses ahead of time, so they can be accessed as a slot in a
+ * frame (see {@link Scope#load(int, int)}) instead of being looked up by name
+ * through each scope.
+ *
+ * Since {@code define} and {@code for} can bind names while the body is being
+ * evaluated, any name which is bound by either of these in a function's body
+ * is never resolved to that function's frame or any frame outside of it, and
+ * is looked up by name as before. This assumes {@code define} and {@code for}
+ * are the functions from the standard library.
+ */
+final class Resolver {
+
+    private static final Symbol DEFINE = Symbol.of("define");
+    private static final Symbol FOR = Symbol.of("for");
+
+    private Resolver() {}
+
+    /**
+     * The layout of a function's frame, which contains the parameters and the
+     * names which may be bound in the body.
+     */
+    static final class Layout {
+
+        private final Symbol[] parameters;
+        private final Set<Symbol> bound;
+        private final Symbol duplicate;
+
+        private Layout(Symbol[] parameters, Set<Symbol> bound, Symbol duplicate) {
+            this.parameters = parameters;
+            this.bound = bound;
+            this.duplicate = duplicate;
+        }
+
+        int size() {
+            return parameters.length;
+        }
+
+        Symbol getParameter(int slot) {
+            return parameters[slot];
+        }
+
+        /**
+         * Returns the slot of the parameter, or -1 if there isn't one.
+         */
+        int indexOf(Symbol name) {
+            for (int i = 0; i < parameters.length; i++) {
+                if (parameters[i] == name)
+                    return i;
+            }
+            return -1;
+        }
+
+        /**
+         * Returns true if the name may be bound by define or for in the body,
+         * so it can't be resolved to this frame or any outside of it.
+         */
+        boolean binds(Symbol name) {
+            return bound.contains(name);
+        }
+
+        Set<Symbol> getBound() {
+            return bound;
+        }
+
+        /**
+         * Returns a parameter which is declared more than once, else null.
+         */
+        Symbol getDuplicate() {
+            return duplicate;
+        }
+
+    }
+
+    /**
+     * Creates the layout of a function. Since calling the function binds the
+     * parameters without going through {@link Scope#define(Symbol, Object)},
+     * the scope it is defined in must invalidate them (see
+     * {@link Scope#invalidate(Resolver.Layout)}).
+     */
+    static Layout layout(List<Symbol> parameters, Ast body) {
+        Set<Symbol> bound = new HashSet<>();
+        bind(body, bound);
+        return layout(parameters, bound);
+    }
+
+    /**
+     * Creates the layout of a function where the names bound in the body are
+     * already known, such as when it has been decoded from {@link Bytecode}.
+     */
+    static Layout layout(List<Symbol> parameters, Set<Symbol> bound) {
+        Set<Symbol> seen = new HashSet<>();
+        Symbol duplicate = null;
+        for (Symbol parameter : parameters) {
+            if (!seen.add(parameter) && duplicate == null)
+                duplicate = parameter;
+        }
+        return new Layout(parameters.toArray(new Symbol[0]), bound, duplicate);
+    }
+
+    /**
+     * Adds the names which may be bound by evaluating the ast, not including
+     * the bodies of functions it defines.
+     */
+    private static void bind(Ast ast, Set<Symbol> bound) {
+        if (!(ast instanceof Ast.Term))
+            return;
+        Ast.Term term = (Ast.Term) ast;
+        List<Ast> args = term.getArgs();
+        if (term.getSymbol() == DEFINE && !args.isEmpty()) {
+            if (args.get(0) instanceof Ast.Term) {
+                bound.add(((Ast.Term) args.get(0)).getSymbol());
+                return;
+            } else if (args.get(0) instanceof Ast.Identifier) {
+                bound.add(((Ast.Identifier) args.get(0)).getSymbol());
+            }
+        } else if (term.getSymbol() == FOR && !args.isEmpty() && args.get(0) instanceof Ast.Term) {
+            bound.add(((Ast.Term) args.get(0)).getSymbol());
+        }
+        for (Ast arg : args) {
+            bind(arg, bound);
+        }
+    }
+
+    /**
+     * Returns a copy of the body of a function with the given layout, defined
+     * in the given scope, where each term and identifier which refers to a
+     * parameter has been given its address. The bodies of functions defined in
+     * the body are not resolved, as that happens when they are defined.
+     */
+    static Ast resolve(Ast body, Layout layout, Scope closure) {
+        if (body instanceof Ast.Identifier) {
+            Ast.Identifier identifier = (Ast.Identifier) body;
+            long address = address(identifier.getSymbol(), layout, closure);
+            if (address < 0)
+                return body;
+            return new Ast.Identifier(identifier.getSymbol(), (int) (address >>> 32), (int) address);
+        } else if (body instanceof Ast.Term) {
+            Ast.Term term = (Ast.Term) body;
+            long address = address(term.getSymbol(), layout, closure);
+            List<Ast> args = term.getArgs();
+            if (address >= 0 || term.getSymbol() != DEFINE || args.isEmpty() || !(args.get(0) instanceof Ast.Term)) {
+                List<Ast> resolved = new ArrayList<>(args.size());
+                for (Ast arg : args) {
+                    resolved.add(resolve(arg, layout, closure));
+                }
+                args = resolved;
+            }
+            if (address < 0)
+                return new Ast.Term(term.getSymbol(), args);
+            return new Ast.Term(term.getSymbol(), args, (int) (address >>> 32), (int) address);
+        }
+        return body;
+    }
+
+    /**
+     * Returns the address of the name as {@code depth << 32 | slot}, or -1 if
+     * it can't be resolved.
+     */
+    private static long address(Symbol name, Layout layout, Scope closure) {
+        if (layout.bound.contains(name))
+            return -1;
+        if (layout.indexOf(name) >= 0)
+            return layout.indexOf(name);
+        long depth = 1;
+        for (Scope frame = closure != null ? closure.getFrame() : null; frame != null; frame = frame.getOuter(), depth++) {
+            Layout outer = frame.getLayout();
+            if (outer.bound.contains(name))
+                return -1;
+            if (outer.indexOf(name) >= 0)
+                return depth << 32 | outer.indexOf(name);
+        }
+        return -1;
+    }
+
+}
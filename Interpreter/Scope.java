@@ -1,32 +1,182 @@
 package plc.interpreter;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
+/**
+ * Variables are stored in a small open-addressed table keyed by the id of
+ * their {@link Symbol}, so lookups compare symbols by identity instead of
+ * hashing and comparing names. The String methods intern the name first.
+ *
+ * The scope created for a function call is a <em>frame</em>, which stores the
+ * parameters in a fixed-size array of slots. Identifiers which have been
+ * resolved to a (depth, slot) address by the {@link Resolver} are accessed
+ * with {@link #load(int, int)} and {@link #store(int, int, Object)}, where the
+ * depth is the number of frames out from the current one. Other variables are
+ * still looked up by name, and the table is only allocated once something is
+ * defined in the scope.
+ *
+ * Each tree of scopes, which is all the scopes of one interpreter, counts the
+ * number of times each name has been bound or assigned in it (see
+ * {@link #getVersion(Symbol)}), so code which has made an assumption about the
+ * value of a name can check that it still holds. The variable of a for loop
+ * is bound with {@link #iterate(Symbol, Object)}, which only counts the first
+ * time, so its value must never be assumed (see {@link #isIterated(Symbol)}).
+ */
 public final class Scope {
 
     private final Scope parent;
-    private final Map<String, Object> map = new HashMap<>();
+    private final Scope frame;
+    private final Scope outer;
+    private final Resolver.Layout layout;
+    private final Object[] slots;
+    private final Versions versions;
+    private Symbol[] names;
+    private Object[] values;
+    private int size = 0;
+    private Symbol iterated = null;
+
+    /**
+     * The versions of the names in a tree of scopes, indexed by the id of the
+     * symbol and grown as needed.
+     */
+    private static final class Versions {
+
+        private int[] counts = new int[64];
+
+        int get(Symbol name) {
+            return name.getId() < counts.length ? counts[name.getId()] : 0;
+        }
+
+        void increment(Symbol name) {
+            if (name.getId() >= counts.length)
+                counts = Arrays.copyOf(counts, Math.max(2 * counts.length, name.getId() + 1));
+            counts[name.getId()]++;
+        }
+
+    }
 
     public Scope(Scope parent) {
         this.parent = parent;
+        this.frame = parent != null ? parent.frame : null;
+        this.outer = null;
+        this.layout = null;
+        this.slots = null;
+        this.versions = parent != null ? parent.versions : new Versions();
+    }
+
+    /**
+     * Creates a frame with the parameters of the layout bound to the values in
+     * the slots.
+     */
+    Scope(Scope parent, Resolver.Layout layout, Object[] slots) {
+        this.parent = parent;
+        this.frame = this;
+        this.outer = parent != null ? parent.frame : null;
+        this.layout = layout;
+        this.slots = slots;
+        this.versions = parent != null ? parent.versions : new Versions();
     }
 
     public Scope getParent() {
         return parent;
     }
 
+    /**
+     * Returns the frame of the innermost function call containing this scope,
+     * or null if there is none.
+     */
+    Scope getFrame() {
+        return frame;
+    }
+
+    /**
+     * Returns the frame containing the frame of this scope, which is the frame
+     * the function was defined in.
+     */
+    Scope getOuter() {
+        return outer;
+    }
+
+    Resolver.Layout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Returns the number of times the name has been bound or assigned in this
+     * tree of scopes, not counting the iterations of a for loop.
+     */
+    int getVersion(Symbol name) {
+        return versions.get(name);
+    }
+
+    /**
+     * Records that the name has been bound or assigned without going through
+     * this scope, such as the parameters of a function when it is called.
+     */
+    void invalidate(Symbol name) {
+        versions.increment(name);
+    }
+
+    /**
+     * Invalidates the parameters of a function defined in this scope.
+     */
+    void invalidate(Resolver.Layout layout) {
+        for (int i = 0; i < layout.size(); i++) {
+            versions.increment(layout.getParameter(i));
+        }
+    }
+
+    Object load(int depth, int slot) {
+        Scope scope = frame;
+        for (int i = 0; i < depth; i++) {
+            scope = scope.outer;
+        }
+        return scope.slots[slot];
+    }
+
+    void store(int depth, int slot, Object value) {
+        Scope scope = frame;
+        for (int i = 0; i < depth; i++) {
+            scope = scope.outer;
+        }
+        scope.slots[slot] = value;
+    }
+
     public void define(String name, Object value) {
-        if (map.containsKey(name)) {
+        define(Symbol.of(name), value);
+    }
+
+    public void define(Symbol name, Object value) {
+        versions.increment(name);
+        if (parameter(name) >= 0 || names != null && names[slot(name)] != null) {
             throw new EvalException("The identifier " + name + " is already defined in this scope.");
         } else {
-            map.put(name, value);
+            if (names == null) {
+                names = new Symbol[8];
+                values = new Object[8];
+            }
+            int slot = slot(name);
+            names[slot] = name;
+            values[slot] = value;
+            if (++size * 2 > names.length)
+                resize();
         }
     }
 
     public void set(String name, Object value) throws EvalException {
-        if (map.containsKey(name)) {
-            map.put(name, value);
+        set(Symbol.of(name), value);
+    }
+
+    public void set(Symbol name, Object value) throws EvalException {
+        versions.increment(name);
+        int parameter = parameter(name);
+        if (parameter >= 0) {
+            slots[parameter] = value;
+            return;
+        }
+        int slot = names != null ? slot(name) : -1;
+        if (slot >= 0 && names[slot] != null) {
+            values[slot] = value;
         } else if (parent != null) {
             parent.set(name, value);
         } else {
@@ -34,9 +184,45 @@ public final class Scope {
         }
     }
 
+    /**
+     * Binds the variable of a for loop to the next element. The first time it
+     * is defined in this scope, and after that it is assigned without
+     * changing its version, so that running the body doesn't invalidate what
+     * has been assumed about the name on every iteration.
+     */
+    void iterate(Symbol name, Object value) {
+        if (iterated == null) {
+            define(name, value);
+            iterated = name;
+        } else {
+            values[slot(name)] = value;
+        }
+    }
+
+    /**
+     * Returns true if the scope the name is bound in binds it with
+     * {@link #iterate(Symbol, Object)}, so its value can change without its
+     * version changing.
+     */
+    boolean isIterated(Symbol name) {
+        if (parameter(name) >= 0)
+            return false;
+        if (names != null && names[slot(name)] != null)
+            return iterated == name;
+        return parent != null && parent.isIterated(name);
+    }
+
     public Object lookup(String name) throws EvalException {
-        if (map.containsKey(name)) {
-            return map.get(name);
+        return lookup(Symbol.of(name));
+    }
+
+    public Object lookup(Symbol name) throws EvalException {
+        int parameter = parameter(name);
+        if (parameter >= 0)
+            return slots[parameter];
+        int slot = names != null ? slot(name) : -1;
+        if (slot >= 0 && names[slot] != null) {
+            return values[slot];
         } else if (parent != null) {
             return parent.lookup(name);
         } else {
@@ -44,4 +230,38 @@ public final class Scope {
         }
     }
 
+    /**
+     * Returns the slot of the parameter with the given name if this scope is a
+     * frame, else -1.
+     */
+    private int parameter(Symbol name) {
+        return layout != null ? layout.indexOf(name) : -1;
+    }
+
+    /**
+     * Returns the slot containing the name, or the empty slot where it would
+     * be inserted.
+     */
+    private int slot(Symbol name) {
+        int mask = names.length - 1;
+        int slot = name.getId() & mask;
+        while (names[slot] != null && names[slot] != name)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void resize() {
+        Symbol[] oldNames = names;
+        Object[] oldValues = values;
+        names = new Symbol[oldNames.length * 2];
+        values = new Object[oldValues.length * 2];
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != null) {
+                int slot = slot(oldNames[i]);
+                names[slot] = oldNames[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
 }
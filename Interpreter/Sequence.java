@@ -0,0 +1,97 @@
+package plc.interpreter;
+
+import java.util.Iterator;
+import java.util.Objects;
+
+/**
+ * A value whose elements can be iterated over by for, which is a
+ * {@link WhispList}, a {@link PersistentVector} or a {@link NumericArray}, or a
+ * {@link Range} or the result of map or filter (see {@link Sequences}) whose
+ * elements are computed as they are needed. Whatever
+ * their type, sequences are equal when they have equal elements in the same
+ * order, and they print like a {@link java.util.List}.
+ */
+interface Sequence extends Iterable<Object> {
+
+    /**
+     * Checks that the value is a sequence, with the same message as when every
+     * list was a LinkedList.
+     */
+    static Sequence require(Object value) {
+        if (!(value instanceof Sequence))
+            throw new EvalException("Expected " + value + " to have type LinkedList.");
+        return (Sequence) value;
+    }
+
+    /**
+     * Returns an iterator for a single pass over the elements, which for, reduce
+     * and array use since they never look at an element again. Unlike
+     * {@link #iterator()}, the sequence doesn't need to remember the elements.
+     */
+    default Iterator<Object> traverse() {
+        return iterator();
+    }
+
+    /**
+     * Returns the number of elements, counting them unless the type of the
+     * sequence knows how many there are.
+     */
+    default Object length() {
+        long count = 0;
+        for (Iterator<Object> iterator = traverse(); iterator.hasNext(); iterator.next()) {
+            count++;
+        }
+        return Numbers.valueOf(count);
+    }
+
+    /**
+     * Returns the element at the index, counting from zero.
+     */
+    default Object nth(long index) {
+        if (index >= 0) {
+            Iterator<Object> iterator = iterator();
+            for (long i = 0; iterator.hasNext(); i++) {
+                Object value = iterator.next();
+                if (i == index)
+                    return value;
+            }
+        }
+        throw new EvalException("Error: Index out of bounds");
+    }
+
+    static boolean equals(Sequence sequence, Object obj) {
+        if (obj == sequence)
+            return true;
+        if (!(obj instanceof Sequence))
+            return false;
+        Iterator<Object> x = sequence.iterator();
+        Iterator<Object> y = ((Sequence) obj).iterator();
+        while (x.hasNext() && y.hasNext()) {
+            if (!Objects.equals(x.next(), y.next()))
+                return false;
+        }
+        return !x.hasNext() && !y.hasNext();
+    }
+
+    /**
+     * Returns the same hash code as a {@link java.util.List} of the elements.
+     */
+    static int hashCode(Sequence sequence) {
+        int hash = 1;
+        for (Object element : sequence) {
+            hash = 31 * hash + Objects.hashCode(element);
+        }
+        return hash;
+    }
+
+    static String toString(Sequence sequence) {
+        StringBuilder builder = new StringBuilder("[");
+        for (Object element : sequence) {
+            if (builder.length() > 1)
+                builder.append(", ");
+            builder.append(element);
+        }
+        return builder.append(']').toString();
+    }
+
+}
@@ -0,0 +1,314 @@
+package plc.interpreter;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * The operations on sequences in the standard library. map and filter return
+ * a sequence which calls the function on each element of the original as it
+ * is needed, instead of building a list, so a chain such as
+ * {@code (reduce + (map f (filter p xs)))} makes a single pass over xs
+ * without keeping any of the elements.
+ *
+ * Operations which only make a single pass (for, reduce, array and length)
+ * compute the elements as they go and keep nothing. Looking at elements with
+ * nth, equals? or print remembers each element once it has been computed, so
+ * looking again returns the same elements without calling the function again.
+ * The trade-off is that a sequence which has been passed over and is then
+ * looked at calls the function again for each element, since nothing was kept
+ * from the first pass, and so uses memory for its elements from then on.
+ *
+ * Functions are called with the values of their arguments, like compiled
+ * code does, so they must be a {@link Closure} or a {@link Builtin}.
+ */
+final class Sequences {
+
+    private Sequences() {}
+
+    /**
+     * A sequence whose elements are computed by an iterator the first time
+     * they are looked at, and remembered after that. If computing an element
+     * throws an exception, it is thrown again whenever that element is needed.
+     * A single pass before anything has been remembered computes the elements
+     * without remembering them.
+     */
+    private abstract static class Lazy implements Sequence {
+
+        private final List<Object> realized = new ArrayList<>();
+        private Iterator<Object> pending;
+        private RuntimeException failure;
+        private boolean done = false;
+
+        /**
+         * Returns an iterator which computes the elements, making a single
+         * pass over the original sequence.
+         */
+        abstract Iterator<Object> compute();
+
+        @Override
+        public final Iterator<Object> traverse() {
+            return realized.isEmpty() && failure == null && !done ? compute() : iterator();
+        }
+
+        /**
+         * Computes elements until there is one at the index, returning
+         * whether there is.
+         */
+        final boolean realize(int index) {
+            while (realized.size() <= index && !done) {
+                if (failure != null)
+                    throw failure;
+                if (pending == null)
+                    pending = compute();
+                try {
+                    if (pending.hasNext()) {
+                        realized.add(pending.next());
+                    } else {
+                        done = true;
+                        pending = null;
+                    }
+                } catch (RuntimeException e) {
+                    failure = e;
+                    throw e;
+                }
+            }
+            return realized.size() > index;
+        }
+
+        @Override
+        public Object nth(long index) {
+            if (index < 0 || index >= Integer.MAX_VALUE || !realize((int) index))
+                throw new EvalException("Error: Index out of bounds");
+            return realized.get((int) index);
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            return new Iterator<Object>() {
+
+                private int index = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return realize(index);
+                }
+
+                @Override
+                public Object next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    return realized.get(index++);
+                }
+
+            };
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return Sequence.equals(this, obj);
+        }
+
+        @Override
+        public int hashCode() {
+            return Sequence.hashCode(this);
+        }
+
+        @Override
+        public String toString() {
+            return Sequence.toString(this);
+        }
+
+    }
+
+    private static final class Mapped extends Lazy {
+
+        private final Object function;
+        private final Sequence sequence;
+
+        Mapped(Object function, Sequence sequence) {
+            this.function = function;
+            this.sequence = sequence;
+        }
+
+        @Override
+        Iterator<Object> compute() {
+            Iterator<Object> iterator = sequence.traverse();
+            return new Iterator<Object>() {
+
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public Object next() {
+                    return call(function, iterator.next());
+                }
+
+            };
+        }
+
+        /**
+         * Returns the length of the original, without calling the function.
+         */
+        @Override
+        public Object length() {
+            return sequence.length();
+        }
+
+    }
+
+    private static final class Filtered extends Lazy {
+
+        private final Object predicate;
+        private final Sequence sequence;
+
+        Filtered(Object predicate, Sequence sequence) {
+            this.predicate = predicate;
+            this.sequence = sequence;
+        }
+
+        @Override
+        Iterator<Object> compute() {
+            Iterator<Object> iterator = sequence.traverse();
+            return new Iterator<Object>() {
+
+                private Object next;
+                private boolean ready = false;
+
+                @Override
+                public boolean hasNext() {
+                    while (!ready && iterator.hasNext()) {
+                        Object value = iterator.next();
+                        if (Interpreter.requireType(Boolean.class, call(predicate, value))) {
+                            next = value;
+                            ready = true;
+                        }
+                    }
+                    return ready;
+                }
+
+                @Override
+                public Object next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    ready = false;
+                    Object value = next;
+                    next = null;
+                    return value;
+                }
+
+            };
+        }
+
+    }
+
+    static Sequence map(Object function, Object sequence) {
+        return new Mapped(require(function), Sequence.require(sequence));
+    }
+
+    static Sequence filter(Object predicate, Object sequence) {
+        return new Filtered(require(predicate), Sequence.require(sequence));
+    }
+
+    static Object length(Object sequence) {
+        return Sequence.require(sequence).length();
+    }
+
+    /**
+     * Returns the element of the sequence at the index, which must be an
+     * integer.
+     */
+    static Object nth(Object sequence, Object index) {
+        return Sequence.require(sequence).nth(index(index));
+    }
+
+    /**
+     * Checks that the value is an integer index, which must fit in a long.
+     */
+    static long index(Object index) {
+        BigDecimal value = Numbers.toBigDecimal(Numbers.require(index));
+        if (value.stripTrailingZeros().scale() > 0)
+            throw new EvalException("Error: Index is not an integer");
+        try {
+            return value.longValueExact();
+        } catch (ArithmeticException e) {
+            throw new EvalException("Error: Index out of bounds");
+        }
+    }
+
+    /**
+     * Combines the elements with the function from left to right, starting
+     * with the first element, or calls the function with no arguments if there
+     * aren't any.
+     */
+    static Object reduce(Object function, Object sequence) {
+        require(function);
+        Iterator<Object> iterator = Sequence.require(sequence).traverse();
+        if (!iterator.hasNext())
+            return call(function);
+        return reduce(function, iterator.next(), iterator);
+    }
+
+    /**
+     * Combines the initial value and the elements with the function from left
+     * to right.
+     */
+    static Object reduce(Object function, Object initial, Object sequence) {
+        require(function);
+        return reduce(function, initial, Sequence.require(sequence).traverse());
+    }
+
+    private static Object reduce(Object function, Object result, Iterator<Object> iterator) {
+        if (function instanceof Builtin) {
+            Builtin builtin = (Builtin) function;
+            if (iterator.hasNext()) {
+                builtin.check(2);
+                builtin.check(result);
+            }
+            while (iterator.hasNext()) {
+                result = builtin.invoke(result, builtin.check(iterator.next()));
+            }
+            return result;
+        }
+        Closure closure = (Closure) function;
+        while (iterator.hasNext()) {
+            result = closure.invoke(new Object[] {result, iterator.next()});
+        }
+        return result;
+    }
+
+    /**
+     * Checks that the value is a function which can be called with the values
+     * of its arguments.
+     */
+    private static Object require(Object function) {
+        Interpreter.requireType(Function.class, function);
+        if (!(function instanceof Closure) && !(function instanceof Builtin))
+            throw new EvalException("Error: Expected a function which evaluates its arguments");
+        return function;
+    }
+
+    private static Object call(Object function) {
+        if (function instanceof Builtin) {
+            Builtin builtin = (Builtin) function;
+            builtin.check(0);
+            return builtin.invoke();
+        }
+        return ((Closure) function).invoke(new Object[0]);
+    }
+
+    private static Object call(Object function, Object x) {
+        if (function instanceof Builtin) {
+            Builtin builtin = (Builtin) function;
+            builtin.check(1);
+            return builtin.invoke(builtin.check(x));
+        }
+        return ((Closure) function).invoke(new Object[] {x});
+    }
+
+}
@@ -0,0 +1,56 @@
+package plc.interpreter;
+
+/**
+ * A call to a {@link Closure} in tail position, which is returned by the
+ * function making it instead of being called, so that it doesn't use any
+ * more of the Java stack. The result of the last form of do, and, or, or the
+ * body of a function is in tail position.
+ *
+ * The call is made by {@link #run(Object)} once the functions which returned
+ * it have all returned. Since and and or require their last argument to be a
+ * boolean, a tail call from one of these also checks the result, which can be
+ * done at the end since the check gives the same result however many times it
+ * is made.
+ */
+final class TailCall {
+
+    private final Closure closure;
+    private final Object[] values;
+    private final boolean check;
+
+    TailCall(Closure closure, Object[] values) {
+        this(closure, values, false);
+    }
+
+    private TailCall(Closure closure, Object[] values, boolean check) {
+        this.closure = closure;
+        this.values = values;
+        this.check = check;
+    }
+
+    /**
+     * Makes the tail calls until there is a result, if the value is one.
+     */
+    static Object run(Object value) {
+        boolean check = false;
+        while (value instanceof TailCall) {
+            TailCall call = (TailCall) value;
+            check |= call.check;
+            value = call.closure.call(call.values);
+        }
+        return check ? Interpreter.requireType(Boolean.class, value) : value;
+    }
+
+    /**
+     * Checks that the value of the last argument to and or or is a boolean,
+     * which if the value is a tail call happens once it has been made.
+     */
+    static Object requireBoolean(Object value) {
+        if (value instanceof TailCall) {
+            TailCall call = (TailCall) value;
+            return new TailCall(call.closure, call.values, true);
+        }
+        return Interpreter.requireType(Boolean.class, value);
+    }
+
+}
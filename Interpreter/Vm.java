@@ -0,0 +1,375 @@
+package plc.interpreter;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Runs {@link Bytecode} with a single dispatch loop over an operand stack.
+ * Calls from bytecode to functions defined by bytecode push an
+ * {@link Activation} on the heap instead of recursing in Java, so the depth of
+ * recursion in a program isn't limited by the Java stack, and a
+ * {@link Bytecode#TAILCALL} doesn't push one at all. Builtins and other
+ * functions are still called directly, with up to three arguments to a
+ * builtin passed straight from the operand stack.
+ *
+ * This has the same results as {@link Interpreter#eval(Ast)}, with functions
+ * which evaluate their own arguments called with the asts of the call site.
+ * Bytecode can also be run as an {@link Execution}, which can be paused and
+ * resumed.
+ */
+public final class Vm {
+
+    private final Interpreter interpreter;
+
+    public Vm(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    /**
+     * A function defined by bytecode. Any VM for the same interpreter runs it in
+     * its own loop, and anything else calls it through the VM that defined it.
+     */
+    static final class VmClosure extends Closure {
+
+        private final Vm vm;
+        private final Bytecode bytecode;
+
+        VmClosure(Vm vm, Bytecode bytecode, Scope parent) {
+            super(vm.interpreter, bytecode.layout, parent);
+            this.vm = vm;
+            this.bytecode = bytecode;
+        }
+
+        @Override
+        Object run(Scope frame, Object[] slots) {
+            return vm.run(bytecode, frame);
+        }
+
+    }
+
+    /**
+     * The state of a call which is waiting on the function it called. The
+     * values on the operand stack belonging to it stay where they are.
+     */
+    private static final class Activation {
+
+        private final Activation caller;
+        private final Bytecode bytecode;
+        private final int pc;
+        private final Scope scope;
+
+        Activation(Activation caller, Bytecode bytecode, int pc, Scope scope) {
+            this.caller = caller;
+            this.bytecode = bytecode;
+            this.pc = pc;
+            this.scope = scope;
+        }
+
+    }
+
+    /**
+     * The state of running some bytecode, which is all kept on the heap so
+     * that it can be paused and resumed later, including on another thread.
+     * A paused execution stops at the next jump or call made by bytecode, so
+     * a call to a builtin or function not defined by bytecode, or to a special
+     * form which has been redefined, finishes first.
+     */
+    public final class Execution {
+
+        private Object[] stack = new Object[16];
+        private int sp = 0;
+        private Activation caller = null;
+        private Bytecode bytecode;
+        private int pc = 0;
+        private Scope scope;
+        private volatile boolean done = false;
+        private volatile Object result = null;
+        private volatile boolean paused = false;
+
+        private Execution(Bytecode bytecode, Scope scope) {
+            this.bytecode = bytecode;
+            this.scope = scope;
+        }
+
+        /**
+         * Asks the execution to stop, which can be done from any thread. If it
+         * isn't running, the next call to {@link #resume()} stops at the first
+         * jump or call instead.
+         */
+        public void pause() {
+            paused = true;
+        }
+
+        /**
+         * Runs until the execution has finished or is paused, returning true
+         * if it has finished. If an exception is thrown the execution is
+         * finished, and can't be resumed.
+         */
+        public synchronized boolean resume() {
+            if (!done) {
+                try {
+                    run(this);
+                } catch (RuntimeException | Error e) {
+                    done = true;
+                    stack = null;
+                    throw e;
+                }
+            }
+            return done;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        public Object getResult() {
+            if (!done)
+                throw new IllegalStateException("The execution has not finished.");
+            return result;
+        }
+
+    }
+
+    /**
+     * Runs the bytecode in the current scope of the interpreter.
+     */
+    public Object run(Bytecode bytecode) {
+        return run(bytecode, interpreter.scope);
+    }
+
+    Object run(Bytecode bytecode, Scope scope) {
+        Execution execution = new Execution(bytecode, scope);
+        run(execution);
+        return execution.result;
+    }
+
+    /**
+     * Starts running the bytecode in the current scope of the interpreter,
+     * without running anything until the execution is resumed.
+     */
+    public Execution start(Bytecode bytecode) {
+        return new Execution(bytecode, interpreter.scope);
+    }
+
+    /**
+     * Runs the execution until it finishes or is paused, keeping its state in
+     * local variables in the meantime.
+     */
+    @SuppressWarnings("unchecked")
+    private void run(Execution execution) {
+        Object[] stack = execution.stack;
+        int sp = execution.sp;
+        Activation caller = execution.caller;
+        Bytecode bytecode = execution.bytecode;
+        int[] code = bytecode.code;
+        int pc = execution.pc;
+        Scope scope = execution.scope;
+        loop:
+        while (true) {
+            if (sp + 2 > stack.length)
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            switch (code[pc]) {
+                case Bytecode.CONST:
+                    stack[sp++] = bytecode.constants[code[pc + 1]];
+                    pc += 2;
+                    break;
+                case Bytecode.VOID:
+                    stack[sp++] = Interpreter.VOID;
+                    pc += 1;
+                    break;
+                case Bytecode.TRUE:
+                    stack[sp++] = true;
+                    pc += 1;
+                    break;
+                case Bytecode.FALSE:
+                    stack[sp++] = false;
+                    pc += 1;
+                    break;
+                case Bytecode.LOAD:
+                    stack[sp++] = scope.load(code[pc + 1], code[pc + 2]);
+                    pc += 3;
+                    break;
+                case Bytecode.LOOKUP:
+                    stack[sp++] = bytecode.caches[code[pc + 1]].lookup(scope);
+                    pc += 2;
+                    break;
+                case Bytecode.STORE:
+                    scope.store(code[pc + 1], code[pc + 2], stack[--sp]);
+                    pc += 3;
+                    break;
+                case Bytecode.SET:
+                    scope.set(bytecode.symbols[code[pc + 1]], stack[--sp]);
+                    pc += 2;
+                    break;
+                case Bytecode.DEFINE:
+                    scope.define(bytecode.symbols[code[pc + 1]], stack[--sp]);
+                    pc += 2;
+                    break;
+                case Bytecode.POP:
+                    stack[--sp] = null;
+                    pc += 1;
+                    break;
+                case Bytecode.JUMP:
+                    if (execution.paused)
+                        break loop;
+                    pc = code[pc + 1];
+                    break;
+                case Bytecode.JUMP_IF_FALSE:
+                    pc = Interpreter.requireType(Boolean.class, stack[--sp]) ? pc + 2 : code[pc + 1];
+                    break;
+                case Bytecode.JUMP_IF_TRUE:
+                    pc = Interpreter.requireType(Boolean.class, stack[--sp]) ? code[pc + 1] : pc + 2;
+                    break;
+                case Bytecode.GUARD: {
+                    Symbol name = bytecode.symbols[code[pc + 1]];
+                    pc = scope.lookup(name) == interpreter.getLibrary(name) ? pc + 3 : code[pc + 2];
+                    break;
+                }
+                case Bytecode.PREPARE: {
+                    Object value = stack[sp - 1];
+                    if (value instanceof Builtin) {
+                        ((Builtin) value).check(code[pc + 1]);
+                        pc += 4;
+                    } else if (value instanceof Closure) {
+                        pc += 4;
+                    } else {
+                        Function<List<Ast>, Object> fun = Interpreter.requireType(Function.class, value);
+                        stack[sp - 1] = interpreter.apply(fun, bytecode.sites[code[pc + 2]], scope);
+                        pc = code[pc + 3];
+                    }
+                    break;
+                }
+                case Bytecode.CHECK: {
+                    Object value = stack[sp - 2 - code[pc + 1]];
+                    if (value instanceof Builtin)
+                        stack[sp - 1] = ((Builtin) value).check(stack[sp - 1]);
+                    pc += 2;
+                    break;
+                }
+                case Bytecode.CALL:
+                case Bytecode.TAILCALL: {
+                    if (execution.paused)
+                        break loop;
+                    boolean tail = code[pc] == Bytecode.TAILCALL;
+                    int count = code[pc + 1];
+                    if (count <= 3 && stack[sp - 1 - count] instanceof Builtin) {
+                        Builtin builtin = (Builtin) stack[sp - 1 - count];
+                        Object result;
+                        switch (count) {
+                            case 0:
+                                result = builtin.invoke();
+                                break;
+                            case 1:
+                                result = builtin.invoke(stack[sp - 1]);
+                                break;
+                            case 2:
+                                result = builtin.invoke(stack[sp - 2], stack[sp - 1]);
+                                break;
+                            default:
+                                result = builtin.invoke(stack[sp - 3], stack[sp - 2], stack[sp - 1]);
+                                break;
+                        }
+                        Arrays.fill(stack, sp - count, sp, null);
+                        sp -= count;
+                        stack[sp - 1] = result;
+                        pc += 2;
+                        break;
+                    }
+                    Object[] values = Arrays.copyOfRange(stack, sp - count, sp);
+                    Arrays.fill(stack, sp - count, sp, null);
+                    sp -= count;
+                    Object value = stack[sp - 1];
+                    pc += 2;
+                    if (value instanceof VmClosure && ((VmClosure) value).vm.interpreter == interpreter) {
+                        VmClosure closure = (VmClosure) value;
+                        if (closure.layout.size() != values.length)
+                            throw new EvalException("Invalid number of arguments");
+                        if (closure.layout.getDuplicate() != null)
+                            throw new EvalException("The identifier " + closure.layout.getDuplicate() + " is already defined in this scope.");
+                        stack[--sp] = null;
+                        if (!tail)
+                            caller = new Activation(caller, bytecode, pc, scope);
+                        bytecode = closure.bytecode;
+                        code = bytecode.code;
+                        pc = 0;
+                        scope = new Scope(closure.parent, closure.layout, values);
+                    } else if (value instanceof Builtin) {
+                        stack[sp - 1] = ((Builtin) value).invoke(values);
+                    } else {
+                        stack[sp - 1] = ((Closure) value).invoke(values);
+                    }
+                    break;
+                }
+                case Bytecode.RETURN: {
+                    if (caller == null) {
+                        execution.done = true;
+                        execution.result = stack[--sp];
+                        execution.stack = null;
+                        return;
+                    }
+                    bytecode = caller.bytecode;
+                    code = bytecode.code;
+                    pc = caller.pc;
+                    scope = caller.scope;
+                    caller = caller.caller;
+                    break;
+                }
+                case Bytecode.ENTER:
+                    scope = new Scope(scope);
+                    pc += 1;
+                    break;
+                case Bytecode.LEAVE:
+                    scope = scope.getParent();
+                    pc += 1;
+                    break;
+                case Bytecode.CLOSURE:
+                    scope.invalidate(bytecode.functions[code[pc + 1]].layout);
+                    stack[sp++] = new VmClosure(this, bytecode.functions[code[pc + 1]], scope);
+                    pc += 2;
+                    break;
+                case Bytecode.ITERATE: {
+                    Iterator<Object> iterator = Sequence.require(stack[sp - 1]).traverse();
+                    if (!iterator.hasNext()) {
+                        stack[sp - 1] = Interpreter.VOID;
+                        pc = code[pc + 2];
+                    } else {
+                        scope = new Scope(scope);
+                        stack[sp - 1] = iterator;
+                        pc += 3;
+                    }
+                    break;
+                }
+                case Bytecode.NEXT: {
+                    Iterator<Object> iterator = (Iterator<Object>) stack[sp - 1];
+                    if (iterator.hasNext()) {
+                        scope.iterate(bytecode.symbols[code[pc + 1]], iterator.next());
+                        pc += 3;
+                    } else {
+                        stack[sp - 1] = Interpreter.VOID;
+                        scope = scope.getParent();
+                        pc = code[pc + 2];
+                    }
+                    break;
+                }
+                case Bytecode.APPLY: {
+                    Function<List<Ast>, Object> fun = Interpreter.requireType(Function.class, stack[sp - 1]);
+                    stack[sp - 1] = interpreter.apply(fun, bytecode.sites[code[pc + 1]], scope);
+                    pc += 2;
+                    break;
+                }
+                default:
+                    throw new AssertionError(code[pc]);
+            }
+        }
+        execution.stack = stack;
+        execution.sp = sp;
+        execution.caller = caller;
+        execution.bytecode = bytecode;
+        execution.pc = pc;
+        execution.scope = scope;
+        execution.paused = false;
+    }
+
+}
@@ -0,0 +1,79 @@
+package plc.interpreter;
+
+import java.util.AbstractList;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * A list of values, which is what list returns. The elements are kept in an
+ * array which is never changed after the list is created, so getting an
+ * element by its index takes constant time and iterating over the list
+ * doesn't allocate anything besides the iterator.
+ *
+ * Lists print and compare like any other {@link java.util.List}, which is the
+ * same as when they were {@link java.util.LinkedList}s, and are equal to any
+ * {@link Sequence} with the same elements.
+ */
+final class WhispList extends AbstractList<Object> implements RandomAccess, Sequence {
+
+    static final WhispList EMPTY = new WhispList(new Object[0]);
+
+    private final Object[] elements;
+
+    /**
+     * Creates a list of the elements, which are not copied and must not be
+     * changed afterwards.
+     */
+    WhispList(Object... elements) {
+        this.elements = elements;
+    }
+
+    @Override
+    public Object get(int index) {
+        return elements[index];
+    }
+
+    @Override
+    public int size() {
+        return elements.length;
+    }
+
+    @Override
+    public Object length() {
+        return Numbers.valueOf(elements.length);
+    }
+
+    @Override
+    public Object nth(long index) {
+        if (index < 0 || index >= elements.length)
+            throw new EvalException("Error: Index out of bounds");
+        return elements[(int) index];
+    }
+
+    @Override
+    public Object[] toArray() {
+        return elements.clone();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof Sequence && !(obj instanceof WhispList))
+            return Sequence.equals(this, obj);
+        else if (!(obj instanceof WhispList))
+            return super.equals(obj);
+        Object[] other = ((WhispList) obj).elements;
+        if (other.length != elements.length)
+            return false;
+        for (int i = 0; i < elements.length; i++) {
+            if (!Objects.equals(elements[i], other[i]))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode();
+    }
+
+}
@@ -6,6 +6,8 @@ import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 
+import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Stream;
@@ -124,6 +126,57 @@ final class LexerTests {
         Assertions.assertEquals(expected, Lexer.lex(input));
     }
 
+    @Test
+    void testSignsAndDots() {
+        String input = "(- -x . .5 1.2.3 +)";
+        List<Token> expected = Arrays.asList(
+                new Token(Token.Type.OPERATOR, "(", 0),
+                new Token(Token.Type.IDENTIFIER, "-", 1),
+                new Token(Token.Type.IDENTIFIER, "-x", 3),
+                new Token(Token.Type.OPERATOR, ".", 6),
+                new Token(Token.Type.IDENTIFIER, ".5", 8),
+                new Token(Token.Type.NUMBER, "1.2", 11),
+                new Token(Token.Type.IDENTIFIER, ".3", 14),
+                new Token(Token.Type.IDENTIFIER, "+", 17),
+                new Token(Token.Type.OPERATOR, ")", 18)
+        );
+        Assertions.assertEquals(expected, Lexer.lex(input));
+    }
+
+    @Test
+    void testStream() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            builder.append("(print \"line ").append(i).append("\" -").append(i).append(".5)\n");
+        }
+        String input = builder.toString();
+        List<Token> tokens = new ArrayList<>();
+        Lexer.stream(new StringReader(input)).forEachRemaining(tokens::add);
+        Assertions.assertEquals(Lexer.lex(input), tokens);
+    }
+
+    @Test
+    void testPack() {
+        String input = "(let [x 10] (assert-equals? x \"ten\"))";
+        TokenBuffer buffer = Lexer.pack(input);
+        Assertions.assertEquals(Lexer.lex(input), buffer.asList());
+        Assertions.assertEquals(Token.Type.IDENTIFIER, buffer.getType(7));
+        Assertions.assertEquals(13, buffer.getIndex(7));
+        Assertions.assertEquals(14, buffer.getLength(7));
+        Assertions.assertTrue(buffer.is(7, "assert-equals?"));
+        Assertions.assertEquals("\"ten\"", buffer.getLiteral(9));
+    }
+
+    @Test
+    void testSymbols() {
+        List<Token> tokens = Lexer.lex("(define x (+ x 1))");
+        Assertions.assertSame(Symbol.of("x"), tokens.get(2).getSymbol());
+        Assertions.assertSame(tokens.get(2).getSymbol(), tokens.get(5).getSymbol());
+        Assertions.assertSame(tokens.get(4).getSymbol(), Lexer.pack("+").getSymbol(0));
+        Assertions.assertEquals("define".hashCode(), tokens.get(1).getSymbol().hashCode());
+        Assertions.assertNull(tokens.get(6).getSymbol());
+    }
+
     @ParameterizedTest
     @MethodSource("plc.interpreter.LexerTests#testPeekAndMatch")
     void testPeek(String test, String input, String[] patterns, boolean matches) {
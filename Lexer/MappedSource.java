@@ -0,0 +1,77 @@
+package plc.interpreter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A {@link CharSequence} over a memory-mapped source file, which allows the
+ * lexer to read a file without decoding it into a {@link String} first.
+ *
+ * Each byte of the file is one character, which is exact for ASCII. Other
+ * bytes can only be part of string literals in a valid program, and are
+ * decoded as UTF-8 when a slice is converted with {@link #toString()}. As a
+ * result, token indices in a mapped source are byte offsets.
+ */
+final class MappedSource implements CharSequence {
+
+    private final ByteBuffer bytes;
+    private final int offset;
+    private final int length;
+
+    private MappedSource(ByteBuffer bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Maps the file at the given path into memory. The file must be smaller
+     * than 2GB, which is the limit of a single mapping.
+     */
+    static MappedSource map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("The file " + path + " is too large to map.");
+            return new MappedSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), 0, (int) channel.size());
+        }
+    }
+
+    /**
+     * Returns a read-only view of the bytes of this source.
+     */
+    ByteBuffer getBytes() {
+        ByteBuffer slice = bytes.asReadOnlyBuffer();
+        slice.position(offset);
+        slice.limit(offset + length);
+        return slice.slice();
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (bytes.get(offset + index) & 0xFF);
+    }
+
+    @Override
+    public MappedSource subSequence(int start, int end) {
+        return new MappedSource(bytes, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        byte[] array = new byte[length];
+        ByteBuffer slice = bytes.duplicate();
+        slice.position(offset);
+        slice.get(array);
+        return new String(array, StandardCharsets.UTF_8);
+    }
+
+}
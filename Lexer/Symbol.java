@@ -0,0 +1,123 @@
+package plc.interpreter;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An interned identifier name. There is only one symbol for each name, so
+ * symbols can be compared by identity, and each symbol has a stable id which
+ * can be used as an index. The hash code is the same as the name's, but is
+ * computed once when the symbol is interned.
+ *
+ * Identifiers are interned by the lexer as tokens are created, and symbols are
+ * never removed from the table. Looking up a name which has been seen before,
+ * or a symbol by its id, doesn't take a lock, so lexers on different threads
+ * only wait for each other when they see a new name.
+ */
+public final class Symbol {
+
+    private static final ConcurrentHashMap<Object, Symbol> symbols = new ConcurrentHashMap<>();
+    private static volatile Symbol[] ids = new Symbol[1024];
+    private static int count = 0;
+
+    private final String name;
+    private final int id;
+    private final int hash;
+
+    private Symbol(String name, int id) {
+        this.name = name;
+        this.id = id;
+        this.hash = name.hashCode();
+    }
+
+    /**
+     * Looks up a name in the source in the table of symbols, which is keyed
+     * by strings, without creating a String for it.
+     */
+    private static final class Key {
+
+        private final CharSequence source;
+        private final int offset;
+        private final int length;
+        private final int hash;
+
+        Key(CharSequence source, int offset, int length) {
+            this.source = source;
+            this.offset = offset;
+            this.length = length;
+            int hash = 0;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + source.charAt(offset + i);
+            }
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof String && Token.is(source, offset, length, (String) obj);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+    }
+
+    /**
+     * Returns the symbol for the given name, interning it if needed.
+     */
+    public static Symbol of(String name) {
+        Symbol symbol = symbols.get(name);
+        return symbol != null ? symbol : symbols.computeIfAbsent(name, key -> create((String) key));
+    }
+
+    /**
+     * Returns the symbol with the given id.
+     */
+    public static Symbol get(int id) {
+        return ids[id];
+    }
+
+    /**
+     * Returns the symbol for the name {@code source[offset, offset + length)},
+     * only creating a String for the name the first time it is seen.
+     */
+    static Symbol intern(CharSequence source, int offset, int length) {
+        Symbol symbol = symbols.get(new Key(source, offset, length));
+        return symbol != null ? symbol : of(source.subSequence(offset, offset + length).toString());
+    }
+
+    /**
+     * Creates the symbol for a new name, and publishes it in the table of
+     * ids before it can be found by name.
+     */
+    private static synchronized Symbol create(String name) {
+        Symbol[] table = ids;
+        if (count == table.length)
+            table = Arrays.copyOf(table, count * 2);
+        Symbol symbol = new Symbol(name, count);
+        table[count++] = symbol;
+        ids = table;
+        return symbol;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
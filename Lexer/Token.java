@@ -1,5 +1,13 @@
 package plc.interpreter;
 
+/**
+ * Tokens created by the lexer reference a slice of the source rather than
+ * copying their literal, which is only converted to a {@link String} when
+ * {@link #getLiteral()} is called. Use {@link #is(String)} to compare the
+ * literal without converting it.
+ *
+ * Identifier tokens are interned as a {@link Symbol} when they are created.
+ */
 public final class Token {
 
     public enum Type {
@@ -10,13 +18,37 @@ public final class Token {
     }
 
     private final Type type;
-    private final String literal;
+    private final CharSequence source;
+    private final int offset;
+    private final int length;
     private final int index;
+    private final Symbol symbol;
+    private String literal;
 
     public Token(Type type, String literal, int index) {
-        this.type = type;
+        this(type, literal, 0, literal.length(), index);
         this.literal = literal;
+    }
+
+    /**
+     * Creates a token with the literal {@code source[index, index + length)}.
+     */
+    Token(Type type, CharSequence source, int index, int length) {
+        this(type, source, index, length, index);
+    }
+
+    /**
+     * Creates a token with the literal {@code source[offset, offset + length)}
+     * at the given index, which may differ from the offset when the source is
+     * a buffer rather than the entire input.
+     */
+    Token(Type type, CharSequence source, int offset, int length, int index) {
+        this.type = type;
+        this.source = source;
+        this.offset = offset;
+        this.length = length;
         this.index = index;
+        this.symbol = type == Type.IDENTIFIER ? Symbol.intern(source, offset, length) : null;
     }
 
     public Type getType() {
@@ -24,6 +56,8 @@ public final class Token {
     }
 
     public String getLiteral() {
+        if (literal == null)
+            literal = source.subSequence(offset, offset + length).toString();
         return literal;
     }
 
@@ -31,16 +65,46 @@ public final class Token {
         return index;
     }
 
+    /**
+     * Returns the interned symbol for an identifier, else null.
+     */
+    public Symbol getSymbol() {
+        return symbol;
+    }
+
+    /**
+     * Returns true if the literal is equal to the given string.
+     */
+    public boolean is(String literal) {
+        if (this.literal != null)
+            return this.literal.equals(literal);
+        return is(source, offset, length, literal);
+    }
+
+    /**
+     * Returns true if {@code source[offset, offset + length)} is equal to the
+     * given literal, without creating a String for the slice.
+     */
+    static boolean is(CharSequence source, int offset, int length, String literal) {
+        if (length != literal.length())
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (source.charAt(offset + i) != literal.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
     @Override
     public boolean equals(Object obj) {
         return obj instanceof Token && type == ((Token) obj).type
-                && literal.equals(((Token) obj).literal)
+                && getLiteral().equals(((Token) obj).getLiteral())
                 && index == ((Token) obj).index;
     }
 
     @Override
     public String toString() {
-        return type + "=`" + literal + "`@" + index;
+        return type + "=`" + getLiteral() + "`@" + index;
     }
 
 }
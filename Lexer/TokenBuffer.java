@@ -0,0 +1,108 @@
+package plc.interpreter;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact list of tokens, which stores the type, index, and length of each
+ * token in parallel arrays instead of as {@link Token} objects. Identifiers
+ * are interned as they are added, storing the id of their {@link Symbol}. This
+ * uses thirteen bytes per token, and literals are read from the source only
+ * when needed.
+ *
+ * Tokens are created on demand by {@link #get(int)}, which is mostly useful
+ * for error messages and tests.
+ */
+public final class TokenBuffer {
+
+    private static final Token.Type[] TYPES = Token.Type.values();
+
+    private final CharSequence source;
+    private byte[] types = new byte[64];
+    private int[] indices = new int[64];
+    private int[] lengths = new int[64];
+    private int[] symbols = new int[64];
+    private int size = 0;
+
+    TokenBuffer(CharSequence source) {
+        this.source = source;
+    }
+
+    void add(Token.Type type, int index, int length) {
+        if (size == types.length) {
+            types = Arrays.copyOf(types, size * 2);
+            indices = Arrays.copyOf(indices, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+            symbols = Arrays.copyOf(symbols, size * 2);
+        }
+        types[size] = (byte) type.ordinal();
+        indices[size] = index;
+        lengths[size] = length;
+        symbols[size] = type == Token.Type.IDENTIFIER ? Symbol.intern(source, index, length).getId() : -1;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Token.Type getType(int i) {
+        return TYPES[types[i]];
+    }
+
+    public int getIndex(int i) {
+        return indices[i];
+    }
+
+    public int getLength(int i) {
+        return lengths[i];
+    }
+
+    /**
+     * Returns the interned symbol of the i-th token if it is an identifier,
+     * else null.
+     */
+    public Symbol getSymbol(int i) {
+        return symbols[i] < 0 ? null : Symbol.get(symbols[i]);
+    }
+
+    public String getLiteral(int i) {
+        return source.subSequence(indices[i], indices[i] + lengths[i]).toString();
+    }
+
+    /**
+     * Returns true if the literal of the i-th token is equal to the given
+     * string, without creating a String for the literal.
+     */
+    public boolean is(int i, String literal) {
+        return Token.is(source, indices[i], lengths[i], literal);
+    }
+
+    public Token get(int i) {
+        return new Token(getType(i), source, indices[i], lengths[i]);
+    }
+
+    /**
+     * Returns a view of the buffer as a list of tokens, which are created as
+     * they are accessed.
+     */
+    public List<Token> asList() {
+        return new AbstractList<Token>() {
+
+            @Override
+            public Token get(int index) {
+                if (index < 0 || index >= size)
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+                return TokenBuffer.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+        };
+    }
+
+}
@@ -13,23 +13,48 @@ import java.util.stream.Collectors;
  * and number/string literals. There are other ways to design this but this is
  * what was selected.
  *
+ * Names of terms and identifiers are stored as interned {@link Symbol}s, so
+ * they can be compared by identity and used as keys without hashing strings.
+ *
  * There is a fair bit of Java overhead in these classes for getters and
- * equals/toString, which are be needed for the interpreter, JUnit tests, and
- * debugging.
+ * equals/hashCode/toString, which are be needed for the interpreter, JUnit
+ * tests, and debugging. Hash codes are cached where they aren't already, and
+ * {@link AstFactory} can be used to share structurally equal nodes.
+ *
+ * Terms and identifiers may also have a lexical address from the
+ * {@link Resolver}, which is the depth and slot of the frame their name is
+ * bound in. Addresses aren't part of equality, and are -1 when unresolved.
  */
 public class Ast {
 
     public static final class Term extends Ast {
 
-        private final String name;
+        private final Symbol name;
         private final List<Ast> args;
+        private final int depth;
+        private final int slot;
+        private int hash;
 
         public Term(String name, List<Ast> args) {
+            this(Symbol.of(name), args);
+        }
+
+        public Term(Symbol name, List<Ast> args) {
+            this(name, args, -1, -1);
+        }
+
+        Term(Symbol name, List<Ast> args, int depth, int slot) {
             this.name = name;
             this.args = args;
+            this.depth = depth;
+            this.slot = slot;
         }
 
         public String getName() {
+            return name.getName();
+        }
+
+        public Symbol getSymbol() {
             return name;
         }
 
@@ -37,9 +62,25 @@ public class Ast {
             return args;
         }
 
+        public int getDepth() {
+            return depth;
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+
         @Override
         public boolean equals(Object obj) {
-            return obj instanceof Term && name.equals(((Term) obj).name) && args.equals(((Term) obj).args);
+            return obj == this || obj instanceof Term && name == ((Term) obj).name
+                    && hashCode() == obj.hashCode() && args.equals(((Term) obj).args);
+        }
+
+        @Override
+        public int hashCode() {
+            if (hash == 0)
+                hash = 31 * name.hashCode() + args.hashCode();
+            return hash;
         }
 
         @Override
@@ -51,24 +92,53 @@ public class Ast {
 
     public static final class Identifier extends Ast {
 
-        private final String name;
+        private final Symbol name;
+        private final int depth;
+        private final int slot;
 
         public Identifier(String name) {
+            this(Symbol.of(name));
+        }
+
+        public Identifier(Symbol name) {
+            this(name, -1, -1);
+        }
+
+        Identifier(Symbol name, int depth, int slot) {
             this.name = name;
+            this.depth = depth;
+            this.slot = slot;
         }
 
         public String getName() {
+            return name.getName();
+        }
+
+        public Symbol getSymbol() {
             return name;
         }
 
+        public int getDepth() {
+            return depth;
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+
         @Override
         public boolean equals(Object obj) {
-            return obj instanceof Identifier && name.equals(((Identifier) obj).name);
+            return obj instanceof Identifier && name == ((Identifier) obj).name;
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
         }
 
         @Override
         public String toString() {
-            return name;
+            return name.getName();
         }
 
     }
@@ -86,6 +156,7 @@ public class Ast {
          * with in general.
          */
         private final BigDecimal value;
+        private int hash;
 
         public NumberLiteral(BigDecimal value) {
             this.value = value;
@@ -97,7 +168,14 @@ public class Ast {
 
         @Override
         public boolean equals(Object obj) {
-            return obj instanceof NumberLiteral && value.equals(((NumberLiteral) obj).value);
+            return obj == this || obj instanceof NumberLiteral && value.equals(((NumberLiteral) obj).value);
+        }
+
+        @Override
+        public int hashCode() {
+            if (hash == 0)
+                hash = value.hashCode();
+            return hash;
         }
 
         @Override
@@ -121,7 +199,12 @@ public class Ast {
 
         @Override
         public boolean equals(Object obj) {
-            return obj instanceof StringLiteral && value.equals(((StringLiteral) obj).value);
+            return obj == this || obj instanceof StringLiteral && value.equals(((StringLiteral) obj).value);
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
         }
 
         @Override
@@ -0,0 +1,200 @@
+package plc.interpreter;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A flat representation of an {@link Ast} for very large programs, which
+ * stores every node in parallel primitive arrays rather than as separate
+ * objects. Each node has a kind, the index of its constant (the name of a term
+ * or identifier, or the value of a literal), and the range of its children.
+ *
+ * The children of each term are stored next to each other, so walking the
+ * arguments of a term reads consecutive array elements. Node {@code 0} is the
+ * root of the tree.
+ */
+public final class AstArena {
+
+    public static final byte TERM = 0, IDENTIFIER = 1, NUMBER = 2, STRING = 3;
+
+    private final byte[] kinds;
+    private final int[] constants;
+    private final int[] children;
+    private final int[] counts;
+    private final Object[] pool;
+
+    private AstArena(byte[] kinds, int[] constants, int[] children, int[] counts, Object[] pool) {
+        this.kinds = kinds;
+        this.constants = constants;
+        this.children = children;
+        this.counts = counts;
+        this.pool = pool;
+    }
+
+    /**
+     * Converts the ast into an arena.
+     */
+    public static AstArena of(Ast ast) {
+        Builder builder = new Builder();
+        builder.fill(builder.reserve(1), ast);
+        return builder.build();
+    }
+
+    public int size() {
+        return kinds.length;
+    }
+
+    public byte getKind(int node) {
+        return kinds[node];
+    }
+
+    /**
+     * Returns the constant of the node, which is a {@link Symbol} for terms
+     * and identifiers, a {@link BigDecimal} for numbers, and a {@link String}
+     * for strings.
+     */
+    public Object getConstant(int node) {
+        return pool[constants[node]];
+    }
+
+    public int getConstantIndex(int node) {
+        return constants[node];
+    }
+
+    public int getChildCount(int node) {
+        return counts[node];
+    }
+
+    public int getChild(int node, int i) {
+        return children[node] + i;
+    }
+
+    /**
+     * Converts the subtree at the given node back into an ast.
+     */
+    public Ast toAst(int node) {
+        switch (kinds[node]) {
+            case TERM:
+                List<Ast> args = new ArrayList<>(counts[node]);
+                for (int i = 0; i < counts[node]; i++) {
+                    args.add(toAst(children[node] + i));
+                }
+                return new Ast.Term((Symbol) getConstant(node), args);
+            case IDENTIFIER:
+                return new Ast.Identifier((Symbol) getConstant(node));
+            case NUMBER:
+                return new Ast.NumberLiteral((BigDecimal) getConstant(node));
+            case STRING:
+                return new Ast.StringLiteral((String) getConstant(node));
+            default:
+                throw new AssertionError(kinds[node]);
+        }
+    }
+
+    /**
+     * Walks the tree depth-first from the root, calling
+     * {@link Visitor#enter(int)} before a node's children and
+     * {@link Visitor#exit(int)} after them. This uses an explicit stack, so the
+     * depth of the tree isn't limited by the Java stack.
+     */
+    public void walk(Visitor visitor) {
+        int[] nodes = new int[16];
+        int[] next = new int[16];
+        int depth = 0;
+        nodes[0] = 0;
+        next[0] = 0;
+        visitor.enter(0);
+        while (depth >= 0) {
+            int node = nodes[depth];
+            if (next[depth] < counts[node]) {
+                int child = children[node] + next[depth]++;
+                visitor.enter(child);
+                if (++depth == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, depth * 2);
+                    next = Arrays.copyOf(next, depth * 2);
+                }
+                nodes[depth] = child;
+                next[depth] = 0;
+            } else {
+                visitor.exit(node);
+                depth--;
+            }
+        }
+    }
+
+    public interface Visitor {
+
+        void enter(int node);
+
+        default void exit(int node) {}
+
+    }
+
+    private static final class Builder {
+
+        private byte[] kinds = new byte[64];
+        private int[] constants = new int[64];
+        private int[] children = new int[64];
+        private int[] counts = new int[64];
+        private int size = 0;
+        private final List<Object> pool = new ArrayList<>();
+        private final Map<Object, Integer> indices = new HashMap<>();
+
+        /**
+         * Reserves the given number of consecutive nodes, returning the first.
+         */
+        private int reserve(int count) {
+            while (size + count > kinds.length) {
+                kinds = Arrays.copyOf(kinds, kinds.length * 2);
+                constants = Arrays.copyOf(constants, constants.length * 2);
+                children = Arrays.copyOf(children, children.length * 2);
+                counts = Arrays.copyOf(counts, counts.length * 2);
+            }
+            size += count;
+            return size - count;
+        }
+
+        private void fill(int node, Ast ast) {
+            if (ast instanceof Ast.Term) {
+                Ast.Term term = (Ast.Term) ast;
+                set(node, TERM, term.getSymbol());
+                int first = reserve(term.getArgs().size());
+                children[node] = first;
+                counts[node] = term.getArgs().size();
+                for (int i = 0; i < term.getArgs().size(); i++) {
+                    fill(first + i, term.getArgs().get(i));
+                }
+            } else if (ast instanceof Ast.Identifier) {
+                set(node, IDENTIFIER, ((Ast.Identifier) ast).getSymbol());
+            } else if (ast instanceof Ast.NumberLiteral) {
+                set(node, NUMBER, ((Ast.NumberLiteral) ast).getValue());
+            } else if (ast instanceof Ast.StringLiteral) {
+                set(node, STRING, ((Ast.StringLiteral) ast).getValue());
+            } else {
+                throw new AssertionError(ast.getClass());
+            }
+        }
+
+        private void set(int node, byte kind, Object constant) {
+            Integer index = indices.get(constant);
+            if (index == null) {
+                index = pool.size();
+                pool.add(constant);
+                indices.put(constant, index);
+            }
+            kinds[node] = kind;
+            constants[node] = index;
+        }
+
+        private AstArena build() {
+            return new AstArena(Arrays.copyOf(kinds, size), Arrays.copyOf(constants, size),
+                    Arrays.copyOf(children, size), Arrays.copyOf(counts, size), pool.toArray());
+        }
+
+    }
+
+}
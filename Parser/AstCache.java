@@ -0,0 +1,81 @@
+package plc.interpreter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.Supplier;
+
+/**
+ * An on-disk cache of parsed programs, stored using {@link AstCodec} in files
+ * named by the SHA-256 hash of the source and the codec version. Unchanged
+ * sources are loaded from the cache without being lexed or parsed, and cache
+ * files which can't be decoded are replaced by parsing the source again.
+ */
+public final class AstCache {
+
+    private final Path directory;
+
+    public AstCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Parses the source file, or loads it from the cache if the contents of
+     * the file have been parsed before.
+     */
+    public Ast parse(Path path) throws IOException {
+        MappedSource source = MappedSource.map(path);
+        MessageDigest digest = digest();
+        digest.update(source.getBytes());
+        return parse(digest, () -> Parser.parse(Lexer.pack(source)));
+    }
+
+    /**
+     * Parses the input, or loads it from the cache if it has been parsed
+     * before.
+     */
+    public Ast parse(String input) throws IOException {
+        MessageDigest digest = digest();
+        digest.update(input.getBytes(StandardCharsets.UTF_8));
+        return parse(digest, () -> Parser.parse(input));
+    }
+
+    private Ast parse(MessageDigest digest, Supplier<Ast> parser) throws IOException {
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        String name = hash.toString();
+        Path file = directory.resolve(name + ".v" + AstCodec.VERSION + ".ast");
+        if (Files.exists(file)) {
+            try {
+                return AstCodec.decode(Files.readAllBytes(file));
+            } catch (IOException e) {
+                // fall through to parse the source and replace the file
+            }
+        }
+        Ast ast = parser.get();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, name, ".tmp");
+        try {
+            Files.write(temp, AstCodec.encode(ast));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return ast;
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+}
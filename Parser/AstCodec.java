@@ -0,0 +1,273 @@
+package plc.interpreter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary encoding for the {@link Ast}, which allows a parsed program
+ * to be stored and loaded again without lexing and parsing it.
+ *
+ * The encoding starts with the {@link #MAGIC} bytes and {@link #VERSION},
+ * followed by a constant pool of the names, strings, and numbers used in the
+ * program (each stored once), and then the nodes of the tree in pre-order.
+ * Each node is a tag followed by the index of its constant, and terms are also
+ * followed by the number of arguments. All counts and indices are varints.
+ */
+public final class AstCodec {
+
+    static final byte[] MAGIC = {'W', 'A', 'S', 'T'};
+    static final int VERSION = 1;
+
+    private static final int TERM = 0, IDENTIFIER = 1, NUMBER = 2, STRING = 3;
+
+    private AstCodec() {}
+
+    public static byte[] encode(Ast ast) {
+        Encoder encoder = new Encoder();
+        encoder.visit(ast);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            writeVarint(out, encoder.constants.size());
+            for (Object constant : encoder.constants) {
+                if (constant instanceof Symbol) {
+                    out.writeByte(IDENTIFIER);
+                    writeBytes(out, ((Symbol) constant).getName().getBytes(StandardCharsets.UTF_8));
+                } else if (constant instanceof String) {
+                    out.writeByte(STRING);
+                    writeBytes(out, ((String) constant).getBytes(StandardCharsets.UTF_8));
+                } else {
+                    BigDecimal number = (BigDecimal) constant;
+                    out.writeByte(NUMBER);
+                    writeVarint(out, (number.scale() << 1) ^ (number.scale() >> 31));
+                    writeBytes(out, number.unscaledValue().toByteArray());
+                }
+            }
+            encoder.nodes.writeTo(out);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Decodes the bytes back into an ast, throwing an {@link IOException} if
+     * the bytes are not in this format or from a different version.
+     */
+    public static Ast decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i])
+                throw new IOException("Not an encoded ast.");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION)
+            throw new IOException("Unsupported ast version " + version + ".");
+        Object[] constants = new Object[readCount(in)];
+        for (int i = 0; i < constants.length; i++) {
+            int tag = in.readUnsignedByte();
+            if (tag == IDENTIFIER) {
+                constants[i] = Symbol.of(new String(readBytes(in), StandardCharsets.UTF_8));
+            } else if (tag == STRING) {
+                constants[i] = new String(readBytes(in), StandardCharsets.UTF_8);
+            } else if (tag == NUMBER) {
+                int scale = readVarint(in);
+                byte[] magnitude = readBytes(in);
+                if (magnitude.length == 0)
+                    throw new IOException("Invalid number.");
+                constants[i] = new BigDecimal(new BigInteger(magnitude), (scale >>> 1) ^ -(scale & 1));
+            } else {
+                throw new IOException("Invalid constant tag " + tag + ".");
+            }
+        }
+        Ast ast;
+        try {
+            ast = decode(in, constants);
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid ast.", e);
+        }
+        if (in.available() != 0)
+            throw new IOException("Unexpected data after the ast.");
+        return ast;
+    }
+
+    /**
+     * Decodes the nodes of the tree, keeping the terms whose arguments are
+     * still being decoded on a stack instead of recursing, so a deeply nested
+     * tree can't overflow the Java stack.
+     */
+    private static Ast decode(DataInputStream in, Object[] constants) throws IOException {
+        Deque<Partial> terms = new ArrayDeque<>();
+        while (true) {
+            int tag = in.readUnsignedByte();
+            Object constant = constant(constants, readVarint(in));
+            Ast ast;
+            try {
+                switch (tag) {
+                    case TERM:
+                        int size = readCount(in);
+                        if (size > 0) {
+                            terms.push(new Partial((Symbol) constant, size));
+                            continue;
+                        }
+                        ast = new Ast.Term((Symbol) constant, new ArrayList<>(0));
+                        break;
+                    case IDENTIFIER:
+                        ast = new Ast.Identifier((Symbol) constant);
+                        break;
+                    case NUMBER:
+                        ast = new Ast.NumberLiteral((BigDecimal) constant);
+                        break;
+                    case STRING:
+                        ast = new Ast.StringLiteral((String) constant);
+                        break;
+                    default:
+                        throw new IOException("Invalid node tag " + tag + ".");
+                }
+            } catch (ClassCastException e) {
+                throw new IOException("Invalid constant for node tag " + tag + ".");
+            }
+            while (!terms.isEmpty()) {
+                Partial term = terms.peek();
+                term.args.add(ast);
+                if (term.args.size() < term.size)
+                    break;
+                terms.pop();
+                ast = new Ast.Term(term.name, term.args);
+            }
+            if (terms.isEmpty())
+                return ast;
+        }
+    }
+
+    /**
+     * A term whose arguments are being decoded.
+     */
+    private static final class Partial {
+
+        private final Symbol name;
+        private final int size;
+        private final List<Ast> args;
+
+        Partial(Symbol name, int size) {
+            this.name = name;
+            this.size = size;
+            this.args = new ArrayList<>(size);
+        }
+
+    }
+
+    private static Object constant(Object[] constants, int index) throws IOException {
+        if (index < 0 || index >= constants.length)
+            throw new IOException("Invalid constant index " + index + ".");
+        return constants[index];
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Invalid varint.");
+    }
+
+    /**
+     * Reads a count of constants or arguments, each of which takes at least
+     * one byte, so a count larger than the remaining bytes is invalid.
+     */
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = readVarint(in);
+        if (count < 0 || count > in.available())
+            throw new IOException("Invalid count " + count + ".");
+        return count;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = readVarint(in);
+        if (length < 0 || length > in.available())
+            throw new IOException("Invalid length " + length + ".");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes the nodes of the tree while building the constant pool, since
+     * the pool isn't known until the entire tree has been visited.
+     */
+    private static final class Encoder {
+
+        private final List<Object> constants = new ArrayList<>();
+        private final Map<Object, Integer> indices = new HashMap<>();
+        private final ByteArrayOutputStream nodes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(nodes);
+
+        private void visit(Ast ast) {
+            try {
+                if (ast instanceof Ast.Term) {
+                    Ast.Term term = (Ast.Term) ast;
+                    node(TERM, term.getSymbol());
+                    writeVarint(out, term.getArgs().size());
+                    for (Ast arg : term.getArgs()) {
+                        visit(arg);
+                    }
+                } else if (ast instanceof Ast.Identifier) {
+                    node(IDENTIFIER, ((Ast.Identifier) ast).getSymbol());
+                } else if (ast instanceof Ast.NumberLiteral) {
+                    node(NUMBER, ((Ast.NumberLiteral) ast).getValue());
+                } else if (ast instanceof Ast.StringLiteral) {
+                    node(STRING, ((Ast.StringLiteral) ast).getValue());
+                } else {
+                    throw new AssertionError(ast.getClass());
+                }
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private void node(int tag, Object constant) throws IOException {
+            Integer index = indices.get(constant);
+            if (index == null) {
+                index = constants.size();
+                constants.add(constant);
+                indices.put(constant, index);
+            }
+            out.writeByte(tag);
+            writeVarint(out, index);
+        }
+
+    }
+
+}
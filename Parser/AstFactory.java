@@ -0,0 +1,127 @@
+package plc.interpreter;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates hash-consed ast nodes, where there is only one (canonical) node for
+ * each structurally equal tree created by the same factory. Canonical nodes
+ * can be compared by identity, and repeated subtrees in generated programs
+ * share the same nodes.
+ *
+ * Lexical addresses from the {@link Resolver} are part of the key, so a
+ * resolved tree only shares nodes with the same addresses and interning it
+ * keeps them, even though {@link Ast#equals} ignores addresses.
+ *
+ * The arguments of canonical terms are unmodifiable. Nodes are kept for as
+ * long as the factory is, so a factory should be scoped to the programs it is
+ * used for.
+ */
+public final class AstFactory {
+
+    private final Map<Key, Ast> nodes = new HashMap<>();
+
+    /**
+     * Returns the canonical node for the tree, interning it and any subtrees
+     * which haven't been seen before.
+     */
+    public Ast intern(Ast ast) {
+        if (ast instanceof Ast.Term) {
+            Ast.Term term = (Ast.Term) ast;
+            List<Ast> args = new ArrayList<>(term.getArgs().size());
+            for (Ast arg : term.getArgs()) {
+                args.add(intern(arg));
+            }
+            return canonical(new Ast.Term(term.getSymbol(), Collections.unmodifiableList(args), term.getDepth(), term.getSlot()));
+        }
+        return canonical(ast);
+    }
+
+    /**
+     * Returns the canonical term, where the arguments should already be
+     * canonical nodes from this factory.
+     */
+    public Ast.Term term(Symbol name, List<Ast> args) {
+        return canonical(new Ast.Term(name, Collections.unmodifiableList(new ArrayList<>(args))));
+    }
+
+    public Ast.Identifier identifier(Symbol name) {
+        return canonical(new Ast.Identifier(name));
+    }
+
+    public Ast.NumberLiteral number(BigDecimal value) {
+        return canonical(new Ast.NumberLiteral(value));
+    }
+
+    public Ast.StringLiteral string(String value) {
+        return canonical(new Ast.StringLiteral(value));
+    }
+
+    /**
+     * Returns the number of canonical nodes.
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Ast> T canonical(T ast) {
+        return (T) nodes.computeIfAbsent(new Key(ast), key -> key.ast);
+    }
+
+    /**
+     * A node compared by its addresses as well as its structure. The arguments
+     * of a term are already canonical, so they are compared by identity.
+     */
+    private static final class Key {
+
+        private final Ast ast;
+        private final int depth;
+        private final int slot;
+
+        private Key(Ast ast) {
+            this.ast = ast;
+            if (ast instanceof Ast.Term) {
+                depth = ((Ast.Term) ast).getDepth();
+                slot = ((Ast.Term) ast).getSlot();
+            } else if (ast instanceof Ast.Identifier) {
+                depth = ((Ast.Identifier) ast).getDepth();
+                slot = ((Ast.Identifier) ast).getSlot();
+            } else {
+                depth = -1;
+                slot = -1;
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            if (depth != other.depth || slot != other.slot)
+                return false;
+            if (ast instanceof Ast.Term && other.ast instanceof Ast.Term) {
+                Ast.Term term = (Ast.Term) ast, that = (Ast.Term) other.ast;
+                if (term.getSymbol() != that.getSymbol() || term.getArgs().size() != that.getArgs().size())
+                    return false;
+                for (int i = 0; i < term.getArgs().size(); i++) {
+                    if (term.getArgs().get(i) != that.getArgs().get(i))
+                        return false;
+                }
+                return true;
+            }
+            return ast.equals(other.ast);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * ast.hashCode() + depth) + slot;
+        }
+
+    }
+
+}
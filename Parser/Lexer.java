@@ -1,31 +1,55 @@
 package plc.interpreter;
 
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * The lexer works through three main functions:
  *
  *  - {@link #lex()}, which repeatedly calls lexToken() and skips whitespace
- *  - {@link #lexToken()}, which lexes the next token
+ *  - {@link #lexToken()}, which lexes the next token and returns its type
  *  - {@link CharStream}, which manages the state of the lexer and literals
  *
+ * The literal of the token just lexed is the last {@code length} characters of
+ * the {@link CharStream}, which is either emitted as a {@link Token} or packed
+ * into a {@link TokenBuffer} by the caller.
+ *
  * If the lexer fails to parse something (such as an unterminated string) you
  * should throw a {@link ParseException}.
  *
- * The {@link #peek(String...)} and {@link #match(String...)} functions are
- * helpers, they're not necessary but their use will make the implementation a
- * lot easier. Regex isn't the most performant way to go but it gets the job
- * done, and the focus here is on the concept.
+ * Characters are classified through the precomputed {@link #CLASSES} table
+ * rather than regex, so lexing is linear in the input and doesn't allocate per
+ * character. The {@link #peek(String...)} and {@link #match(String...)}
+ * functions are still available as regex helpers, but aren't used by the
+ * lexing functions themselves.
  */
 public final class Lexer {
 
     final CharStream chars;
 
-    Lexer(String input) {
-        chars = new CharStream(input);
+    Lexer(CharSequence input) {
+        this(input, 0, input.length());
+    }
+
+    /**
+     * Creates a lexer for the characters {@code input[start, end)}. Tokens
+     * still have their index within the entire input.
+     */
+    Lexer(CharSequence input, int start, int end) {
+        chars = new CharStream(input, start, end);
+    }
+
+    Lexer(Reader reader) {
+        chars = new CharStream(reader);
     }
 
     /**
@@ -35,6 +59,48 @@ public final class Lexer {
         return new Lexer(input).lex();
     }
 
+    /**
+     * Returns an iterator which lexes tokens from the input on demand, such as
+     * a {@link java.nio.CharBuffer}, without building the list of tokens.
+     */
+    static Iterator<Token> stream(CharSequence input) {
+        return new Lexer(input).stream();
+    }
+
+    /**
+     * Lexes the input into a {@link TokenBuffer}, which stores tokens in
+     * parallel arrays instead of creating a {@link Token} for each one.
+     */
+    static TokenBuffer pack(CharSequence input) throws ParseException {
+        return new Lexer(input).pack();
+    }
+
+    /**
+     * Lexes the characters {@code input[start, end)} into a
+     * {@link TokenBuffer}, with indices relative to the entire input.
+     */
+    static TokenBuffer pack(CharSequence input, int start, int end) throws ParseException {
+        return new Lexer(input, start, end).pack();
+    }
+
+    /**
+     * Returns an iterator which lexes tokens on demand from a memory-mapped
+     * file. Tokens reference slices of the mapped file, so the source is never
+     * copied into a String as a whole.
+     */
+    static Iterator<Token> stream(Path path) throws IOException {
+        return new Lexer(MappedSource.map(path)).stream();
+    }
+
+    /**
+     * Returns an iterator which lexes tokens on demand, reading the input from
+     * the reader in bounded chunks. Only the characters of the token currently
+     * being lexed are kept in memory, so the input can be arbitrarily large.
+     */
+    static Iterator<Token> stream(Reader reader) {
+        return new Lexer(reader).stream();
+    }
+
     /**
      * Repeatedly lexes the next token using {@link #lexToken()} until the end
      * of the input is reached, returning the list of tokens lexed. This should
@@ -42,106 +108,178 @@ public final class Lexer {
      */
     List<Token> lex() throws ParseException {
         List<Token> list = new ArrayList<>();
-        while (chars.has(0)) {
-            if (!peek("[ \n\r\t]")) {
-                list.add(lexToken());
-                if(peek("[ \n\r\t]")) {
-                    chars.advance();
-                }
-            }
-            else
-                chars.advance();
-        }
+        while (skipWhitespace())
+            list.add(chars.emit(lexToken()));
         return list;
     }
 
-    Token lexToken() throws ParseException {
-        chars.reset();
-        if (peek("[^A-Za-z0-9+\\-*\\/:\\.!_?<>= \n\r\t\"]")) {
-            Token token = chars.emit(Token.Type.OPERATOR);
-            chars.advance();
-            return token;
+    TokenBuffer pack() throws ParseException {
+        TokenBuffer buffer = new TokenBuffer(chars.input);
+        while (skipWhitespace()) {
+            Token.Type type = lexToken();
+            buffer.add(type, chars.index - chars.length, chars.length);
+            chars.reset();
         }
-        else if (peek("[A-Za-z*\\/:!_?<>=]"))
-            return lexIdentifier();
-        else if (peek("\""))
-            return lexString();
-        else if (peek("[0-9]"))
-            return lexNumber();
-        else if (peek("[+\\-]")) {
-            if (chars.has(1)) {
-                if (peek("[+\\-]", "[0-9]"))
-                    return lexNumber();
-                else if (peek("[+\\-]","[A-Za-z*\\/:!_?+\\-<>\\.=]"))
-                    return lexIdentifier();
+        return buffer;
+    }
+
+    Iterator<Token> stream() {
+        return new Iterator<Token>() {
+
+            @Override
+            public boolean hasNext() {
+                return skipWhitespace();
             }
-            return lexIdentifier();
+
+            @Override
+            public Token next() {
+                if (!skipWhitespace())
+                    throw new NoSuchElementException();
+                return chars.emit(lexToken());
+            }
+
+        };
+    }
+
+    /**
+     * Skips any whitespace, returning true if there is another token to lex.
+     */
+    boolean skipWhitespace() {
+        while (chars.has(0) && classOf(chars.get(0)) == SPACE) {
+            chars.advance();
+            chars.reset();
         }
-        else if(peek("[\\.]"))
-        {
-            if (chars.has(1) && !peek("\\.","[^A-Za-z0-9+\\-*\\/:\\.!_?<>=]"))
+        return chars.has(0);
+    }
+
+    Token.Type lexToken() throws ParseException {
+        chars.reset();
+        switch (classOf(chars.get(0))) {
+            case ALPHA:
+                return lexIdentifier();
+            case QUOTE:
+                return lexString();
+            case DIGIT:
+                return lexNumber();
+            case SIGN:
+                if (chars.has(1) && classOf(chars.get(1)) == DIGIT)
+                    return lexNumber();
                 return lexIdentifier();
-            else {
-                Token token = chars.emit(Token.Type.OPERATOR);
+            case DOT:
+                if (chars.has(1) && isIdentifier(chars.get(1)))
+                    return lexIdentifier();
+                // a lone dot is lexed as an operator
                 chars.advance();
-                return token;
-            }
+                return Token.Type.OPERATOR;
+            case OTHER:
+                chars.advance();
+                return Token.Type.OPERATOR;
+            default:
+                throw new ParseException("Not a valid Token", chars.index);
         }
-        else
-            throw new ParseException("Not a valid Token", chars.index);
-
     }
 
-    Token lexNumber() {
+    Token.Type lexNumber() {
+        if (chars.has(0) && classOf(chars.get(0)) == SIGN)
+            chars.advance();
+        else if (!chars.has(0) || classOf(chars.get(0)) != DIGIT)
+            throw new ParseException("Not a valid Number", chars.index);
         boolean isDot = false;
-        if (match("[\\-+]") || peek("[0-9]")) {
-            while (peek("[0-9]") || peek("[\\.]")) {
-                if (peek("[\\.]")) {
-                    if (isDot || !peek(".","[0-9]"))
-                        return chars.emit(Token.Type.NUMBER);
-                    match("[\\.]");
-                    isDot = true;
-                }
-                else if (match("[0-9]")) {}
+        while (chars.has(0)) {
+            byte type = classOf(chars.get(0));
+            if (type == DIGIT)
+                chars.advance();
+            else if (type == DOT && !isDot && chars.has(1) && classOf(chars.get(1)) == DIGIT) {
+                isDot = true;
+                chars.advance();
             }
-            return chars.emit(Token.Type.NUMBER);
+            else
+                break;
         }
-        throw new ParseException("Not a valid Number", chars.index);
+        return Token.Type.NUMBER;
     }
 
-    Token lexIdentifier() {
-        if(match("[A-Za-z0-9+\\-*\\/:\\.!_?<>=]"))
+    Token.Type lexIdentifier() {
+        if (chars.has(0) && isIdentifier(chars.get(0)))
         {
-            while(match("[A-Za-z0-9+\\-*\\/\\.:!_?<>=]"))
-            {
-                continue;
-            }
-            return chars.emit(Token.Type.IDENTIFIER);
+            chars.advance();
+            while (chars.has(0) && isIdentifier(chars.get(0)))
+                chars.advance();
+            return Token.Type.IDENTIFIER;
         }
         throw new ParseException("Not a valid Identifier", chars.index);
     }
 
-    Token lexString() throws ParseException {
+    Token.Type lexString() throws ParseException {
         int index = chars.index;
-        if (!match("\""))
+        if (!chars.has(0) || chars.get(0) != '"')
             throw new ParseException("Not a valid Token", index);
-        try {
-            while (!peek("[\"]")) {
-                if (match(("[^\\\\\"']?"))) {
-                } else if (match("\\\\", "[bnrt'\"\\\\]")) {
-                } else {
-                    throw new ParseException("Not a valid Token", index);
-                }
+        chars.advance();
+        while (true) {
+            if (!chars.has(0))
+                throw new ParseException("Not a valid String", index);
+            char c = chars.get(0);
+            if (c == '"')
+                break;
+            else if (c == '\\') {
+                if (!chars.has(1) || !isEscape(chars.get(1)))
+                    throw new ParseException("Not a valid String", index);
+                chars.advance();
+                chars.advance();
             }
+            else if (c == '\'')
+                throw new ParseException("Not a valid String", index);
+            else
+                chars.advance();
         }
-        catch (ParseException e)
-        {
-            throw new ParseException("Not a valid String", index);
-        }
-        if (match("['\"']")) {
-            return chars.emit(Token.Type.STRING);
-        }
-        throw new ParseException("Not a valid String", index);
+        chars.advance();
+        return Token.Type.STRING;
+    }
+
+    /**
+     * Character classes used by the lexing functions in place of regex. The
+     * {@link #CLASSES} table maps each ASCII character to its class, and any
+     * character outside of ASCII is {@link #OTHER} (lexed as an operator).
+     */
+    static final byte OTHER = 0, SPACE = 1, ALPHA = 2, DIGIT = 3, SIGN = 4, DOT = 5, QUOTE = 6;
+
+    private static final byte[] CLASSES = new byte[128];
+    private static final boolean[] ESCAPES = new boolean[128];
+
+    static {
+        for (char c : " \n\r\t".toCharArray())
+            CLASSES[c] = SPACE;
+        for (char c = 'A'; c <= 'Z'; c++)
+            CLASSES[c] = ALPHA;
+        for (char c = 'a'; c <= 'z'; c++)
+            CLASSES[c] = ALPHA;
+        for (char c : "*/:!_?<>=".toCharArray())
+            CLASSES[c] = ALPHA;
+        for (char c = '0'; c <= '9'; c++)
+            CLASSES[c] = DIGIT;
+        CLASSES['+'] = SIGN;
+        CLASSES['-'] = SIGN;
+        CLASSES['.'] = DOT;
+        CLASSES['"'] = QUOTE;
+        for (char c : "bnrt'\"\\".toCharArray())
+            ESCAPES[c] = true;
+    }
+
+    static byte classOf(char c) {
+        return c < CLASSES.length ? CLASSES[c] : OTHER;
+    }
+
+    /**
+     * Returns true if the character can be part of an identifier, which is any
+     * letter, digit, sign, dot, or one of {@code *\/:!_?<>=}.
+     */
+    static boolean isIdentifier(char c) {
+        byte type = classOf(c);
+        return type >= ALPHA && type <= DOT;
+    }
+
+    static boolean isEscape(char c) {
+        return c < ESCAPES.length && ESCAPES[c];
     }
 
     /**
@@ -190,32 +328,59 @@ public final class Lexer {
      * This is basically a sequence of characters. The index is used to maintain
      * where in the input string the lexer currently is, and the builder
      * accumulates characters into the literal value for the next token.
+     *
+     * When reading from a {@link Reader}, the characters are kept in a buffer
+     * which is refilled in chunks of {@link #CHUNK} characters. Characters
+     * before the literal being built are discarded on refill, and the buffer
+     * only grows for literals longer than the buffer itself.
      */
     static final class CharStream {
 
-        final String input;
+        static final int CHUNK = 8192;
+
+        final CharSequence input;
+        private final Reader reader;
+        private char[] buffer;
+        /**
+         * The range of characters available, which is either the range of the
+         * input being lexed or the range currently held in the buffer.
+         */
+        private int start = 0;
+        private int end = 0;
         int index = 0;
         int length = 0;
 
-        CharStream(String input) {
+        CharStream(CharSequence input) {
+            this(input, 0, input.length());
+        }
+
+        CharStream(CharSequence input, int start, int end) {
             this.input = input;
+            this.reader = null;
+            this.start = start;
+            this.end = end;
+            this.index = start;
+        }
+
+        CharStream(Reader reader) {
+            this.input = null;
+            this.reader = reader;
+            this.buffer = new char[CHUNK];
         }
 
         /**
          * Returns true if there is a character at index + offset.
          */
         boolean has(int offset) {
-            if (input.length() - 1 < (index + offset))
-                return false;
-            return true;
+            return index + offset < end || reader != null && fill(index + offset);
         }
 
         /**
          * Gets the character at index + offset.
          */
         char get(int offset) {
-            if(has(offset))
-                return input.charAt(index + offset);
+            if (has(offset))
+                return input != null ? input.charAt(index + offset) : buffer[index + offset - start];
             throw new ParseException("Out of bounds", index);
         }
 
@@ -239,16 +404,45 @@ public final class Lexer {
          * Returns a token of the given type with the built literal and resets
          * the length to zero. The index of the token should be the
          * <em>starting</em> index.
+         *
+         * Tokens lexed from an input sequence reference a slice of the input,
+         * while those from a reader copy the literal before the buffer is
+         * reused.
          */
         Token emit(Token.Type type) {
             Token token;
-            if (type.equals(Token.Type.OPERATOR))
-                token = new Token(type, input.substring(index, index + 1), index);
+            int from = index - length;
+            if (input != null)
+                token = new Token(type, input, from, length);
             else
-                token = new Token(type, input.substring(index - length, index), index - length);
+                token = new Token(type, new String(buffer, from - start, length), 0, length, from);
             reset();
             return token;
         }
+
+        /**
+         * Reads from the reader until the character at the given (absolute)
+         * position is buffered, returning false if the input ends first.
+         */
+        private boolean fill(int position) {
+            int keep = index - length;
+            if (keep > start) {
+                System.arraycopy(buffer, keep - start, buffer, 0, end - keep);
+                start = keep;
+            }
+            try {
+                while (end <= position) {
+                    if (end - start == buffer.length)
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    int read = reader.read(buffer, end - start, buffer.length - (end - start));
+                    if (read < 0)
+                        return false;
+                    end += read;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return true;
+        }
     }
 }
-
@@ -1,30 +1,195 @@
 package plc.interpreter;
 
 import javax.swing.event.ListDataEvent;
+import java.io.IOException;
+import java.io.Reader;
 import java.math.BigDecimal;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public final class Parser {
 
+    /**
+     * The minimum number of characters in each chunk parsed in parallel.
+     */
+    static final int CHUNK = 1 << 16;
+
     private final TokenStream tokens;
 
-    private Parser(String input) {
-        tokens = new TokenStream(Lexer.lex(input));
+    private Parser(TokenStream tokens) {
+        this.tokens = tokens;
     }
 
 
     public static Ast parse(String input) {
-        return new Parser(input).parse();
+        return parse(Lexer.pack(input));
+    }
+
+    /**
+     * Parses the tokens in the buffer directly, without creating a
+     * {@link Token} for each one.
+     */
+    public static Ast parse(TokenBuffer tokens) {
+        return new Parser(new BufferStream(tokens)).parse();
+    }
+
+    /**
+     * Parses the file at the given path, which is memory-mapped rather than
+     * read into a String. See {@link MappedSource} for how the file is read.
+     */
+    public static Ast parse(Path path) throws IOException {
+        return parse(Lexer.pack(MappedSource.map(path)));
+    }
+
+    /**
+     * Parses the input read from the reader, lexing tokens on demand rather
+     * than lexing the entire input up front.
+     */
+    public static Ast parse(Reader reader) {
+        return new Parser(new IteratorStream(Lexer.stream(reader))).parse();
+    }
+
+    /**
+     * Returns an iterator which parses one top-level form of the input at a
+     * time, lexing only the tokens needed for that form. This allows each form
+     * to be evaluated (and released) before the rest of the input is parsed,
+     * but also means errors later in the input aren't reported until they're
+     * reached.
+     */
+    public static Iterator<Ast> forms(CharSequence input) {
+        return new Parser(new IteratorStream(Lexer.stream(input))).forms();
+    }
+
+    /**
+     * Returns an iterator over the forms of the memory-mapped file at the
+     * given path, as in {@link #forms(CharSequence)}.
+     */
+    public static Iterator<Ast> forms(Path path) throws IOException {
+        return new Parser(new IteratorStream(Lexer.stream(path))).forms();
+    }
+
+    /**
+     * Returns an iterator over the forms of the input read from the reader, as
+     * in {@link #forms(CharSequence)}.
+     */
+    public static Iterator<Ast> forms(Reader reader) {
+        return new Parser(new IteratorStream(Lexer.stream(reader))).forms();
+    }
+
+    /**
+     * Parses the input in parallel using the common {@link ForkJoinPool}.
+     */
+    public static Ast parseParallel(CharSequence input) {
+        return parseParallel(input, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Parses the input in parallel by splitting it into chunks of top-level
+     * forms (see {@link #split}), which are lexed and parsed as separate
+     * tasks in the pool and then joined in order. Tokens are lexed from the
+     * entire input, so indices are the same as when parsing sequentially.
+     *
+     * If any chunk fails to lex or parse, the input is parsed sequentially
+     * instead so that the exception is the same as {@link #parse(String)}.
+     */
+    public static Ast parseParallel(CharSequence input, ForkJoinPool pool) {
+        return parseParallel(input, pool, CHUNK);
+    }
+
+    static Ast parseParallel(CharSequence input, ForkJoinPool pool, int size) {
+        List<Integer> bounds = split(input, size);
+        if (bounds == null || bounds.size() <= 2)
+            return parse(Lexer.pack(input));
+        List<ForkJoinTask<List<Ast>>> tasks = new ArrayList<>();
+        for (int i = 0; i < bounds.size() - 1; i++) {
+            int start = bounds.get(i);
+            int end = bounds.get(i + 1);
+            tasks.add(pool.submit(() -> new Parser(new BufferStream(Lexer.pack(input, start, end))).parseSource()));
+        }
+        List<Ast> trees = new ArrayList<>();
+        try {
+            for (ForkJoinTask<List<Ast>> task : tasks) {
+                trees.addAll(task.join());
+            }
+        } catch (ParseException e) {
+            tasks.forEach(task -> task.cancel(false));
+            return parse(Lexer.pack(input));
+        }
+        return new Ast.Term("source", trees);
+    }
+
+    /**
+     * Scans the input for the ends of top-level terms, returning the indices
+     * which split the input into chunks of at least {@code size} characters
+     * (including the start and end of the input). String literals are skipped
+     * so brackets inside of them aren't counted. Returns null if the brackets
+     * aren't balanced or a string isn't terminated, which will fail to parse.
+     */
+    static List<Integer> split(CharSequence input, int size) {
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+        int depth = 0;
+        int next = size;
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (c == '"') {
+                i++;
+                while (i < input.length() && input.charAt(i) != '"')
+                    i += input.charAt(i) == '\\' ? 2 : 1;
+                if (i >= input.length())
+                    return null;
+            }
+            else if (c == '(' || c == '[')
+                depth++;
+            else if (c == ')' || c == ']') {
+                if (--depth < 0)
+                    return null;
+                if (depth == 0 && i + 1 >= next && i + 1 < input.length()) {
+                    bounds.add(i + 1);
+                    next = i + 1 + size;
+                }
+            }
+        }
+        if (depth != 0)
+            return null;
+        bounds.add(input.length());
+        return bounds;
     }
 
     private Ast parse() {
+        return new Ast.Term("source", parseSource());
+    }
+
+    private List<Ast> parseSource() {
         List<Ast> trees = new ArrayList<>();
         while(tokens.has(0))
         {
             trees.add(parseAst());
         }
-        return new Ast.Term("source",trees);
+        return trees;
+    }
+
+    private Iterator<Ast> forms() {
+        return new Iterator<Ast>() {
+
+            @Override
+            public boolean hasNext() {
+                return tokens.has(0);
+            }
+
+            @Override
+            public Ast next() {
+                if (!tokens.has(0))
+                    throw new NoSuchElementException();
+                return parseAst();
+            }
+
+        };
     }
 
     private Ast parseAst() {
@@ -36,31 +201,31 @@ public final class Parser {
             return parseStringLit();
         else if(peek(Token.Type.IDENTIFIER))
             return parseIdentifier();
-        throw new ParseException("Cannot Parse, not a valid Token", tokens.get(0).getIndex());
+        throw new ParseException("Cannot Parse, not a valid Token", tokens.getIndex(0));
     }
 
     private Ast.Identifier parseIdentifier() {
         if(match(Token.Type.IDENTIFIER))
         {
-            String name = tokens.get(-1).getLiteral();
+            Symbol name = tokens.getSymbol(-1);
             return new Ast.Identifier(name);
         }
-        throw new ParseException("Not an Identifier", tokens.get(-1).getIndex());
+        throw new ParseException("Not an Identifier", tokens.getIndex(-1));
     }
 
     private Ast.NumberLiteral parseNumberLit() {
         if(match(Token.Type.NUMBER))
         {
-            BigDecimal number = new BigDecimal(tokens.get(-1).getLiteral());
+            BigDecimal number = new BigDecimal(tokens.getLiteral(-1));
             return new Ast.NumberLiteral(number);
         }
-        throw new ParseException("Not an Number Literal", tokens.get(-1).getIndex());
+        throw new ParseException("Not an Number Literal", tokens.getIndex(-1));
     }
 
     private Ast.StringLiteral parseStringLit() {
         if(match(Token.Type.STRING))
         {
-            String string = tokens.get(-1).getLiteral();
+            String string = tokens.getLiteral(-1);
             string = string.substring(1 , string.length() - 1);
             string = string.replace("\\b","\b");
             string = string.replace("\\n","\n");
@@ -71,22 +236,22 @@ public final class Parser {
             string = string.replace("\\\\","\\");
             return new Ast.StringLiteral(string);
         }
-        throw new ParseException("Not an String Literal", tokens.get(-1).getIndex());
+        throw new ParseException("Not an String Literal", tokens.getIndex(-1));
     }
 
     private Ast.Term parseTerm()
     {
         boolean isPar = false;
         List<Ast> args = new ArrayList<>();
-        String name;
+        Symbol name;
         if((match("(")) && peek(Token.Type.IDENTIFIER)) {
             isPar = true;
-            name = parseIdentifier().getName();
+            name = parseIdentifier().getSymbol();
         }
         else if ((match("[")) && peek(Token.Type.IDENTIFIER))
-            name = parseIdentifier().getName();
+            name = parseIdentifier().getSymbol();
         else
-            throw new ParseException("Not a valid term, missing name", tokens.get(-1).getIndex());
+            throw new ParseException("Not a valid term, missing name", tokens.getIndex(-1));
         while(!peek(")") && !peek("]"))
         {
             if(peek(Token.Type.NUMBER))
@@ -98,11 +263,11 @@ public final class Parser {
             else if(peek("(") || peek("["))
                 args.add(parseTerm());
             else
-                throw new ParseException("Not a term, missing valid token", tokens.get(-1).getIndex());
+                throw new ParseException("Not a term, missing valid token", tokens.getIndex(-1));
         }
         if ((match(")") && isPar) || (match("]") && !isPar))
             return new Ast.Term(name, args);
-        throw new ParseException("Not a term, missing closing parenthesis/bracket", tokens.get(-1).getIndex());
+        throw new ParseException("Not a term, missing closing parenthesis/bracket", tokens.getIndex(-1));
     }
 
     private boolean peek(Object... patterns) {
@@ -110,7 +275,7 @@ public final class Parser {
         {
             for (int i = 0; i < patterns.length; i++)
             {
-                if(!patterns[i].equals(tokens.get(i).getType()) && !patterns[i].equals(tokens.get(i).getLiteral()))
+                if(!matches(patterns[i], i))
                     return false;
             }
             return true;
@@ -127,7 +292,7 @@ public final class Parser {
         {
             for (int i = 0; i < patterns.length; i++)
             {
-                if(!patterns[i].equals(tokens.get(i).getType()) && !patterns[i].equals(tokens.get(i).getLiteral()))
+                if(!matches(patterns[i], i))
                     return false;
             }
             for (int i = 0; i < patterns.length; i++)
@@ -137,38 +302,175 @@ public final class Parser {
         return false;
     }
 
-    private static final class TokenStream {
+    /**
+     * Returns true if the pattern is the type or literal of the token at the
+     * given offset. Literals are compared with {@link TokenStream#is} so they
+     * aren't converted to a String just to be checked.
+     */
+    private boolean matches(Object pattern, int offset) {
+        if (pattern instanceof Token.Type)
+            return pattern == tokens.getType(offset);
+        return pattern instanceof String && tokens.is(offset, (String) pattern);
+    }
 
-        private final List<Token> tokens;
-        private int index = 0;
+    /**
+     * The token stream provides access to the tokens relative to the current
+     * index, which is either backed by a {@link TokenBuffer} or pulls tokens
+     * from an iterator as they are needed.
+     */
+    private abstract static class TokenStream {
 
-        private TokenStream(List<Token> tokens) {
-            this.tokens = tokens;
-        }
+        int index = 0;
 
         /**
          * Returns true if there is a token at index + offset.
          */
-        public boolean has(int offset) {
-            if (tokens.size() - 1 < (index + offset))
-                return false;
-            return true;
-        }
+        abstract boolean has(int offset);
 
-        /**
-         * Gets the token at index + offset.
-         */
-        public Token get(int offset) {
-            if(has(offset))
-                return tokens.get(index + offset);
-            throw new ParseException("Index out of bounds", index);
-        }
+        abstract Token.Type type(int offset);
+
+        abstract int index(int offset);
+
+        abstract String literal(int offset);
+
+        abstract Symbol symbol(int offset);
+
+        abstract boolean literalIs(int offset, String literal);
 
         /**
          * Advances to the next token, incrementing the index.
          */
-        public void advance() {
+        void advance() {
             index++;
         }
+
+        public Token.Type getType(int offset) {
+            check(offset);
+            return type(offset);
+        }
+
+        public int getIndex(int offset) {
+            check(offset);
+            return index(offset);
+        }
+
+        public String getLiteral(int offset) {
+            check(offset);
+            return literal(offset);
+        }
+
+        public Symbol getSymbol(int offset) {
+            check(offset);
+            return symbol(offset);
+        }
+
+        public boolean is(int offset, String literal) {
+            check(offset);
+            return literalIs(offset, literal);
+        }
+
+        private void check(int offset) {
+            if (!has(offset))
+                throw new ParseException("Index out of bounds", index);
+        }
+    }
+
+    private static final class BufferStream extends TokenStream {
+
+        private final TokenBuffer tokens;
+
+        private BufferStream(TokenBuffer tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        boolean has(int offset) {
+            return index + offset >= 0 && index + offset < tokens.size();
+        }
+
+        @Override
+        Token.Type type(int offset) {
+            return tokens.getType(index + offset);
+        }
+
+        @Override
+        int index(int offset) {
+            return tokens.getIndex(index + offset);
+        }
+
+        @Override
+        String literal(int offset) {
+            return tokens.getLiteral(index + offset);
+        }
+
+        @Override
+        Symbol symbol(int offset) {
+            return tokens.getSymbol(index + offset);
+        }
+
+        @Override
+        boolean literalIs(int offset, String literal) {
+            return tokens.is(index + offset, literal);
+        }
+    }
+
+    /**
+     * Pulls tokens from the iterator as they are needed, keeping only the
+     * previous token and any tokens peeked ahead.
+     */
+    private static final class IteratorStream extends TokenStream {
+
+        private final Iterator<Token> tokens;
+        private final List<Token> lookahead = new ArrayList<>();
+        private Token previous;
+
+        private IteratorStream(Iterator<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        boolean has(int offset) {
+            if (offset < 0)
+                return offset == -1 && previous != null;
+            while (lookahead.size() <= offset && tokens.hasNext())
+                lookahead.add(tokens.next());
+            return offset < lookahead.size();
+        }
+
+        private Token get(int offset) {
+            return offset < 0 ? previous : lookahead.get(offset);
+        }
+
+        @Override
+        Token.Type type(int offset) {
+            return get(offset).getType();
+        }
+
+        @Override
+        int index(int offset) {
+            return get(offset).getIndex();
+        }
+
+        @Override
+        String literal(int offset) {
+            return get(offset).getLiteral();
+        }
+
+        @Override
+        Symbol symbol(int offset) {
+            return get(offset).getSymbol();
+        }
+
+        @Override
+        boolean literalIs(int offset, String literal) {
+            return get(offset).is(literal);
+        }
+
+        @Override
+        void advance() {
+            if (has(0))
+                previous = lookahead.remove(0);
+            super.advance();
+        }
     }
 }
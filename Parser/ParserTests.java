@@ -6,8 +6,15 @@ import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.stream.Stream;
 
@@ -164,6 +171,156 @@ final class ParserTests {
         test(input, Arrays.asList(expected));
     }
 
+    @Test
+    void testReader() {
+        String input = "(define x 1)\n[print \"x\" (+ x -2.5)]";
+        Assertions.assertEquals(Parser.parse(input), Parser.parse(new StringReader(input)));
+    }
+
+    @Test
+    void testPath() throws IOException {
+        String input = "(define x 1)\n[print \"h\u00e9llo\" (+ x -2.5)]";
+        Path path = Files.createTempFile("parser", ".whisp");
+        try {
+            Files.write(path, input.getBytes(StandardCharsets.UTF_8));
+            Assertions.assertEquals(Parser.parse(input), Parser.parse(path));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void testParallel() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            builder.append("(define (f").append(i).append(" x) [print \"(\" x ").append(i).append("])\n");
+        }
+        String input = builder.toString();
+        Assertions.assertEquals(Parser.parse(input), Parser.parseParallel(input));
+        ParseException expected = Assertions.assertThrows(ParseException.class, () -> Parser.parse(input + "(print $)"));
+        ParseException actual = Assertions.assertThrows(ParseException.class, () -> Parser.parseParallel(input + "(print $)"));
+        Assertions.assertEquals(expected.getIndex(), actual.getIndex());
+    }
+
+    @Test
+    void testForms() {
+        Iterator<Ast> forms = Parser.forms("(print x) y (print \"bad");
+        Assertions.assertEquals(new Ast.Term("print", Arrays.asList(new Ast.Identifier("x"))), forms.next());
+        Assertions.assertEquals(new Ast.Identifier("y"), forms.next());
+        Assertions.assertTrue(forms.hasNext());
+        Assertions.assertThrows(ParseException.class, forms::next);
+    }
+
+    @Test
+    void testCodec() throws IOException {
+        Ast ast = Parser.parse("(define (f x) [print \"h\u00e9llo\\n\" x -2.50 x 123456789123456789.123456789])\n(f 1) y");
+        Assertions.assertEquals(ast, AstCodec.decode(AstCodec.encode(ast)));
+        Ast number = new Ast.NumberLiteral(new BigDecimal("1E+3"));
+        Assertions.assertEquals(number, AstCodec.decode(AstCodec.encode(number)));
+        Assertions.assertThrows(IOException.class, () -> AstCodec.decode("(print x)".getBytes(StandardCharsets.UTF_8)));
+        byte[] negative = {'W', 'A', 'S', 'T', AstCodec.VERSION, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F};
+        Assertions.assertThrows(IOException.class, () -> AstCodec.decode(negative));
+        byte[] large = {'W', 'A', 'S', 'T', AstCodec.VERSION, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07};
+        Assertions.assertThrows(IOException.class, () -> AstCodec.decode(large));
+    }
+
+    @Test
+    void testDeepCodec() throws IOException {
+        // (f (f (f ... x))) nested 100000 times, which is encoded by hand since encoding recurses
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(new byte[] {'W', 'A', 'S', 'T', AstCodec.VERSION, 2, 1, 1, 'f', 1, 1, 'x'});
+        for (int i = 0; i < 100000; i++) {
+            bytes.write(new byte[] {0, 0, 1});
+        }
+        bytes.write(new byte[] {1, 1});
+        byte[] deep = bytes.toByteArray();
+        Ast ast = AstCodec.decode(deep);
+        for (int i = 0; i < 100000; i++) {
+            Assertions.assertEquals("f", ((Ast.Term) ast).getName());
+            ast = ((Ast.Term) ast).getArgs().get(0);
+        }
+        Assertions.assertEquals(new Ast.Identifier("x"), ast);
+        byte[] truncated = Arrays.copyOf(deep, deep.length - 2);
+        Assertions.assertThrows(IOException.class, () -> AstCodec.decode(truncated));
+    }
+
+    @Test
+    void testCache() throws IOException {
+        Path directory = Files.createTempDirectory("cache");
+        try {
+            AstCache cache = new AstCache(directory);
+            String input = "(print (+ 1 2.5) \"x\")";
+            Assertions.assertEquals(Parser.parse(input), cache.parse(input));
+            try (Stream<Path> files = Files.list(directory)) {
+                Path file = files.findFirst().get();
+                Assertions.assertEquals(Parser.parse(input), AstCodec.decode(Files.readAllBytes(file)));
+                Files.write(file, new byte[] {1, 2, 3});
+            }
+            Assertions.assertEquals(Parser.parse(input), cache.parse(input));
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                files.forEach(file -> file.toFile().delete());
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    void testFactory() {
+        AstFactory factory = new AstFactory();
+        Ast.Term source = (Ast.Term) factory.intern(Parser.parse("(print (f x 1) (f x 1)) (print (f x 1) (f x 1))"));
+        Assertions.assertEquals(Parser.parse("(print (f x 1) (f x 1)) (print (f x 1) (f x 1))"), source);
+        Assertions.assertSame(source.getArgs().get(0), source.getArgs().get(1));
+        Ast.Term print = (Ast.Term) source.getArgs().get(0);
+        Assertions.assertSame(print.getArgs().get(0), print.getArgs().get(1));
+        Assertions.assertSame(print.getArgs().get(0), factory.intern(new Ast.Term("f", Arrays.asList(
+                new Ast.Identifier("x"), new Ast.NumberLiteral(BigDecimal.ONE)))));
+        Assertions.assertEquals(5, factory.size());
+    }
+
+    @Test
+    void testFactoryAddresses() {
+        AstFactory factory = new AstFactory();
+        Ast.Term source = (Ast.Term) factory.intern(new Ast.Term(Symbol.of("f"), Arrays.asList(
+                new Ast.Term(Symbol.of("g"), Arrays.asList(new Ast.Identifier(Symbol.of("x"), 0, 0)), 1, 2),
+                new Ast.Term(Symbol.of("g"), Arrays.asList(new Ast.Identifier(Symbol.of("x"), 1, 0)), 1, 2)
+        )));
+        Ast.Term first = (Ast.Term) source.getArgs().get(0);
+        Ast.Term second = (Ast.Term) source.getArgs().get(1);
+        Assertions.assertNotSame(first, second);
+        Assertions.assertEquals(1, first.getDepth());
+        Assertions.assertEquals(2, first.getSlot());
+        Assertions.assertEquals(0, ((Ast.Identifier) first.getArgs().get(0)).getDepth());
+        Assertions.assertEquals(1, ((Ast.Identifier) second.getArgs().get(0)).getDepth());
+        Assertions.assertNotSame(factory.identifier(Symbol.of("x")), first.getArgs().get(0));
+    }
+
+    @Test
+    void testArena() {
+        Ast ast = Parser.parse("(define (f x) [print \"x\" (+ x 1.5)]) (f 2) y");
+        AstArena arena = AstArena.of(ast);
+        Assertions.assertEquals(ast, arena.toAst(0));
+        Assertions.assertEquals(12, arena.size());
+        Assertions.assertEquals(3, arena.getChildCount(0));
+        Assertions.assertEquals(Symbol.of("y"), arena.getConstant(arena.getChild(0, 2)));
+        StringBuilder builder = new StringBuilder();
+        arena.walk(new AstArena.Visitor() {
+
+            @Override
+            public void enter(int node) {
+                builder.append(arena.getKind(node) == AstArena.TERM ? "(" + arena.getConstant(node) : " " + arena.getConstant(node));
+            }
+
+            @Override
+            public void exit(int node) {
+                if (arena.getKind(node) == AstArena.TERM)
+                    builder.append(")");
+            }
+
+        });
+        Assertions.assertEquals("(source(define(f x)(print x(+ x 1.5)))(f 2) y)", builder.toString());
+    }
+
     void test(String input, List<Ast> expected) {
         if (expected != null) {
             Ast ast = new Ast.Term("source", expected);
@@ -1,26 +1,54 @@
 package plc.interpreter;
 
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Paths;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Scanner;
 import java.util.function.Function;
 
+/**
+ * Evaluates each line of input as it is entered, or, if files are given as
+ * arguments, runs each file and exits.
+ *
+ * The system property {@code whisp.threshold} sets the
+ * {@link Interpreter#threshold} for compiling functions to bytecode, and if
+ * {@code whisp.trace} is true functions being promoted and deoptimized are
+ * printed to standard error. If {@code whisp.vm} is true, forms are run by the
+ * {@link Vm} instead, which keeps the stack of calls on the heap.
+ */
 public final class Repl {
 
     private static final Scanner scanner = new Scanner(System.in);
     private static final Interpreter interpreter = new Interpreter(new PrintWriter(System.out, true), new Scope(null));
+    private static final Vm vm = Boolean.getBoolean("whisp.vm") ? new Vm(interpreter) : null;
 
     public static void main(String[] array) {
+        interpreter.threshold = Integer.getInteger("whisp.threshold", interpreter.threshold);
+        if (Boolean.getBoolean("whisp.trace"))
+            interpreter.trace = new PrintWriter(System.err, true);
         interpreter.scope.define("source", (Function<List<Ast>, Object>) args -> {
-            args.stream()
-                    .map(interpreter::eval)
-                    .filter(r -> r != Interpreter.VOID)
-                    .forEach(interpreter.out::println);
+            run(args.iterator());
             return Interpreter.VOID;
         });
+        if (array.length > 0) {
+            for (String file : array) {
+                try {
+                    run(Parser.forms(Paths.get(file)));
+                } catch (IOException e) {
+                    System.out.println("Unable to read " + file + ": " + e.getMessage());
+                    System.exit(1);
+                } catch (ParseException | EvalException e) {
+                    System.out.println(e.getMessage());
+                    System.exit(1);
+                }
+            }
+            return;
+        }
         while (true) {
             try {
-                interpreter.eval(Parser.parse(scanner.nextLine()));
+                run(Parser.forms(scanner.nextLine()));
             } catch (ParseException | EvalException e) {
                 System.out.println(e.getMessage());
             } catch (Exception e) {
@@ -30,4 +58,19 @@ public final class Repl {
         }
     }
 
+    /**
+     * Compiles and executes each form in order, printing any results which
+     * aren't {@link Interpreter#VOID}. Forms are parsed as they are needed when
+     * coming from {@link Parser#forms}, so nothing is held on to after it has
+     * been evaluated.
+     */
+    private static void run(Iterator<Ast> forms) {
+        while (forms.hasNext()) {
+            Ast form = forms.next();
+            Object result = vm != null ? vm.run(Bytecode.compile(form)) : interpreter.execute(form);
+            if (result != Interpreter.VOID)
+                interpreter.out.println(result);
+        }
+    }
+
 }